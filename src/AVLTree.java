@@ -1,8 +1,55 @@
 import sun.reflect.generics.tree.Tree;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 /**
  * AVLTree
@@ -12,17 +59,85 @@ import java.util.List;
  */
 
 public class AVLTree {
+    private static final int LOOKUP_GROUP = 8; // lookups in flight per group in resolveInterleaved
+    private static final int MEMORY_SAMPLES = 64; // values measured by memoryStats
+    private static final int PARALLEL_GRAIN = 1 << 13; // items below which toArrays and fromSorted stay sequential
+    private static final int DIFF_LEAF = 16; // items in a key range below which diff compares them one by one
+    private static final int MAX_PENDING = 64; // queued fix-ups past which a relaxed update works beyond its budget
+    private static final Aggregator FINGERPRINT = Aggregator.sum(new Projection() {
+        public long project(int key, String info) {
+            // splitmix64 finalizer over the key and the info's hash
+            long h = ((long) key << 32) ^ (info == null ? 0x9E3779B9L : info.hashCode() & 0xFFFFFFFFL);
+            h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+            h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+            return h ^ (h >>> 31);
+        }
+    });
     private IAVLNode min;
     private IAVLNode max;
     private IAVLNode root;
     private int size;
+    private final Aggregator aggregator; // null unless the nodes maintain subtree aggregates
+    private final BalancePolicy policy; // the rank rules the rebalancing keeps
+    private int maxFixups; // 0 unless in relaxed balance mode, see setRelaxedBalance
+    private ArrayDeque<IAVLNode> pending; // nodes whose height or balance awaits a fix-up, null unless relaxed
+    private IAVLNode[] pool; // deleted nodes kept for reuse, null unless enabled by setNodePool
+    private int pooled; // number of nodes in pool
+    private boolean exposed; // nodes were handed out since the last releaseNodes(), so none may be recycled
+    private ChangeFeed feed; // null unless enabled by enableChangeFeed
+    private TraceRecorder trace; // null unless set by setTraceRecorder
 
 
     public AVLTree() {
+        this(null, BalancePolicy.AVL);
+    }
+
+    /**
+     * creates an empty tree whose nodes maintain the aggregator's value over their subtrees,
+     * enabling aggregate(lo, hi). a null aggregator creates a plain tree.
+     */
+    public AVLTree(Aggregator aggregator) {
+        this(aggregator, BalancePolicy.AVL);
+    }
+
+    /**
+     * creates an empty tree that keeps the rank rules of the given policy.
+     */
+    public AVLTree(BalancePolicy policy) {
+        this(null, policy);
+    }
+
+    /**
+     * creates an empty tree that maintains the aggregator's value over its subtrees (if not null)
+     * and keeps the rank rules of the given policy.
+     */
+    public AVLTree(Aggregator aggregator, BalancePolicy policy) {
+        if (policy == null)
+            throw new IllegalArgumentException("policy must not be null");
         this.size = 0;
         this.min = null;
         this.max = null;
         this.root = null;
+        this.aggregator = aggregator;
+        this.policy = policy;
+    }
+
+    /**
+     * public BalancePolicy getBalancePolicy()
+     * <p>
+     * returns the rank rules this tree keeps.
+     * complexity: O(1)
+     */
+    public BalancePolicy getBalancePolicy() {
+        return this.policy;
+    }
+
+    /**
+     * returns an empty tree with this tree's aggregator and balance policy.
+     * complexity: O(1)
+     */
+    private AVLTree emptyLike() {
+        return new AVLTree(this.aggregator, this.policy);
     }
 
 
@@ -61,6 +176,8 @@ public class AVLTree {
      * complexity: O(logn)
      */
     public String search(int k) {
+        if (this.trace != null)
+            this.trace.search(this, k);
         if (this.size > 0) {
             IAVLNode temp = this.root;
             while (temp.isRealNode()) {
@@ -84,6 +201,18 @@ public class AVLTree {
      * complexity: O(logn)
      */
     public IAVLNode searchNode(int k) {
+        if (this.trace != null)
+            this.trace.search(this, k);
+        this.exposed = true;
+        return findNode(k);
+    }
+
+    /**
+     * returns the node of an item with key k if it exists in the tree, otherwise null,
+     * without counting as a handed out node (see releaseNodes)
+     * complexity: O(logn)
+     */
+    private IAVLNode findNode(int k) {
         if (this.size > 0) {
             IAVLNode temp = this.root;
             while (temp.isRealNode()) {
@@ -99,6 +228,498 @@ public class AVLTree {
         return null;
     }
 
+    /**
+     * public void searchAll(int[] keys, String[] out)
+     * <p>
+     * batched search: sets out[j] to the info of the item with key keys[j], or null if there is none.
+     * sorted batches are resolved in a single shared descent (see searchAllNodes),
+     * unsorted ones by interleaved lookups.
+     * precondition: out.length >= keys.length
+     * complexity: O(m*logn) for m keys
+     */
+    public void searchAll(int[] keys, String[] out) {
+        IAVLNode[] nodes = new IAVLNode[keys.length];
+        resolveAll(keys, nodes, null);
+        for (int j = 0; j < keys.length; j++) {
+            out[j] = nodes[j] != null ? nodes[j].getValue() : null;
+        }
+    }
+
+    /**
+     * public void searchAllNodes(int[] keys, IAVLNode[] out)
+     * <p>
+     * batched searchNode: sets out[j] to the node with key keys[j], or null if there is none.
+     * if keys is sorted, the whole batch descends the tree once - at each node the key range is
+     * partitioned between the two subtrees, so the shared top of the tree is visited once per batch.
+     * otherwise the lookups are run interleaved in small groups, advancing every lookup in the group
+     * one level per round, so their cache misses overlap instead of being paid one after the other.
+     * precondition: out.length >= keys.length
+     * complexity: O(m*logn) for m keys
+     */
+    public void searchAllNodes(int[] keys, IAVLNode[] out) {
+        this.exposed = true;
+        resolveAll(keys, out, null);
+    }
+
+    /**
+     * public void rankAll(int[] keys, int[] out)
+     * <p>
+     * batched rank: sets out[j] to the number of keys in the tree smaller than keys[j].
+     * uses the same shared / interleaved descent as searchAllNodes.
+     * precondition: out.length >= keys.length
+     * complexity: O(m*logn) for m keys
+     */
+    public void rankAll(int[] keys, int[] out) {
+        resolveAll(keys, new IAVLNode[keys.length], out);
+    }
+
+    /**
+     * resolves the nodes (and, if ranks != null, the ranks) of all keys,
+     * choosing the shared descent for sorted batches and interleaved lookups otherwise.
+     * complexity: O(m*logn) for m keys
+     */
+    private void resolveAll(int[] keys, IAVLNode[] nodes, int[] ranks) {
+        if (this.size == 0) {
+            for (int j = 0; j < keys.length; j++) {
+                nodes[j] = null;
+                if (ranks != null)
+                    ranks[j] = 0;
+            }
+            return;
+        }
+        boolean sorted = true;
+        for (int j = 1; j < keys.length && sorted; j++) {
+            sorted = keys[j - 1] <= keys[j];
+        }
+        if (sorted)
+            resolveSortedRec(this.root, keys, 0, keys.length, 0, nodes, ranks);
+        else
+            resolveInterleaved(keys, nodes, ranks);
+    }
+
+    /**
+     * resolves keys[lo..hi) under node, where base is the number of tree keys smaller than
+     * every key in node's subtree.
+     * precondition: keys[lo..hi) is sorted and all of them belong in node's subtree
+     * complexity: O(logn + number of nodes on the union of the search paths)
+     */
+    private static void resolveSortedRec(IAVLNode node, int[] keys, int lo, int hi, int base, IAVLNode[] nodes, int[] ranks) {
+        if (lo >= hi)
+            return;
+        if (!node.isRealNode()) {
+            for (int j = lo; j < hi; j++) {
+                nodes[j] = null;
+                if (ranks != null)
+                    ranks[j] = base;
+            }
+            return;
+        }
+        int key = node.getKey();
+        int leftSize = node.getLeft().getSize();
+        // [lo, eqStart) go left, [eqStart, eqEnd) are equal to key, [eqEnd, hi) go right
+        int eqStart = lowerBound(keys, lo, hi, key);
+        int eqEnd = eqStart;
+        while (eqEnd < hi && keys[eqEnd] == key) {
+            nodes[eqEnd] = node;
+            if (ranks != null)
+                ranks[eqEnd] = base + leftSize;
+            eqEnd++;
+        }
+        resolveSortedRec(node.getLeft(), keys, lo, eqStart, base, nodes, ranks);
+        resolveSortedRec(node.getRight(), keys, eqEnd, hi, base + leftSize + 1, nodes, ranks);
+    }
+
+    /**
+     * returns the first index in keys[lo..hi) whose key is >= k, or hi if there is none.
+     * precondition: keys[lo..hi) is sorted
+     * complexity: O(log(hi - lo))
+     */
+    private static int lowerBound(int[] keys, int lo, int hi, int k) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < k)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * resolves unsorted keys in groups of LOOKUP_GROUP independent lookups, each round moving
+     * every unfinished lookup of the group one level down.
+     * complexity: O(m*logn) for m keys
+     */
+    private void resolveInterleaved(int[] keys, IAVLNode[] nodes, int[] ranks) {
+        IAVLNode[] cursors = new IAVLNode[LOOKUP_GROUP];
+        int[] bases = new int[LOOKUP_GROUP];
+        for (int start = 0; start < keys.length; start += LOOKUP_GROUP) {
+            int count = Math.min(LOOKUP_GROUP, keys.length - start);
+            for (int g = 0; g < count; g++) {
+                cursors[g] = this.root;
+                bases[g] = 0;
+            }
+            int active = count;
+            while (active > 0) {
+                active = 0;
+                for (int g = 0; g < count; g++) {
+                    IAVLNode curr = cursors[g];
+                    if (curr == null)
+                        continue;
+                    int j = start + g;
+                    if (!curr.isRealNode()) {
+                        nodes[j] = null;
+                        if (ranks != null)
+                            ranks[j] = bases[g];
+                        cursors[g] = null;
+                    } else if (curr.getKey() < keys[j]) {
+                        bases[g] += curr.getLeft().getSize() + 1;
+                        cursors[g] = curr.getRight();
+                        active++;
+                    } else if (curr.getKey() > keys[j]) {
+                        cursors[g] = curr.getLeft();
+                        active++;
+                    } else {
+                        nodes[j] = curr;
+                        if (ranks != null)
+                            ranks[j] = bases[g] + curr.getLeft().getSize();
+                        cursors[g] = null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * private IAVLNode newNode(int k, String i)
+     * creates a detached node for the item, maintaining the tree's aggregator if it has one.
+     * complexity: O(1)
+     */
+    private IAVLNode newNode(int k, String i) {
+        if (this.pooled > 0) {
+            AVLNode node = (AVLNode) this.pool[--this.pooled];
+            this.pool[this.pooled] = null;
+            node.key = k;
+            node.val = i;
+            if (this.aggregator != null)
+                ((AggregateNode) node).aggregate = this.aggregator.lift(k, i);
+            return node;
+        }
+        if (this.aggregator != null)
+            return new AggregateNode(k, i, this.aggregator.lift(k, i));
+        return new TreeNode(k, i);
+    }
+
+    /**
+     * public ChangeFeed enableChangeFeed(int capacity)
+     * <p>
+     * Starts recording every mutation of the tree (insert, delete, split, join, setToEmptyTree and info
+     * replacement through AVLTreeMap) into a sequence-numbered feed keeping the latest capacity changes,
+     * and returns the feed. replicas tail it with ChangeFeed.since and replay it with applyChange, and resync
+     * from a full copy (or a diff) if they fall more than capacity changes behind.
+     * a join is recorded as the inserts of the items it adds, so it costs O(logn + items added) while a
+     * feed is enabled. a split ends the feed with its SPLIT/SPLIT_AT record, and each result tree gets a
+     * feed that starts with the same record at the same seq, telling which side it kept (Change.getSide):
+     * a replica reads the old feed up to the split record, then continues on the feed of the result it
+     * follows with since(seq - 1), which starts with that result's record.
+     * enabling it again replaces the feed.
+     * precondition: capacity > 0
+     * complexity: O(capacity)
+     */
+    public ChangeFeed enableChangeFeed(int capacity) {
+        long last = this.feed == null ? 0 : this.feed.lastSeq();
+        this.feed = new ChangeFeed(capacity, last + 1);
+        return this.feed;
+    }
+
+    /**
+     * public void setTraceRecorder(TraceRecorder recorder)
+     * <p>
+     * Starts recording the calls of insert, delete, search, searchNode, split, join and setToEmptyTree
+     * on this tree (and on the trees split off it) to recorder, or stops if recorder is null.
+     * a tree that already has items is recorded as a LOAD of its keys first.
+     * complexity: O(1), O(n) for the LOAD of a non-empty tree
+     */
+    public void setTraceRecorder(TraceRecorder recorder) {
+        this.trace = recorder;
+        if (recorder != null) {
+            synchronized (recorder) {
+                recorder.idOf(this);
+            }
+        }
+    }
+
+    /**
+     * public ChangeFeed getChangeFeed()
+     * <p>
+     * Returns the tree's change feed, or null if enableChangeFeed was not called.
+     * complexity: O(1)
+     */
+    public ChangeFeed getChangeFeed() {
+        return this.feed;
+    }
+
+    /**
+     * public void applyChange(Change change)
+     * <p>
+     * Applies a change from another tree's feed (or from diff) to this tree, as a replica following it.
+     * INSERT and REPLACE set the item (inserting it, or replacing the info of an existing key), DELETE and
+     * CLEAR remove items, and a split record from a result tree's feed keeps that side of the split,
+     * with this tree taking over the kept side's change feed if it has one of its own.
+     * precondition: change is not the split record of the split tree's own feed (its side is 0),
+     * otherwise an IllegalArgumentException is thrown
+     * complexity: O(logn)
+     */
+    public void applyChange(Change change) {
+        switch (change.getKind()) {
+            case INSERT:
+            case REPLACE: {
+                IAVLNode node = findNode(change.getKey());
+                if (node == null)
+                    insert(change.getKey(), change.getInfo());
+                else
+                    replaceValue(node, change.getInfo());
+                break;
+            }
+            case DELETE:
+                delete(change.getKey());
+                break;
+            case CLEAR:
+                setToEmptyTree();
+                break;
+            default: {
+                if (change.getSide() == 0)
+                    throw new IllegalArgumentException("follow the feed of one of the split's result trees: " + change);
+                AVLTree[] parts = change.getKind() == Change.Kind.SPLIT ? split(change.getKey()) : splitAt(change.getKey());
+                AVLTree kept = parts[change.getSide() < 0 ? 0 : 1];
+                setTreeAs(kept);
+                this.exposed = kept.exposed;
+                this.feed = kept.feed;
+                break;
+            }
+        }
+    }
+
+    /**
+     * public static List<Change> diff(AVLTree from, AVLTree to)
+     * <p>
+     * Returns the changes (INSERT for new or changed items, DELETE for removed ones, in key order)
+     * that turn the items of from into those of to.
+     * both trees must have been created with Aggregator.fingerprint(), so every node holds a hash of its
+     * subtree's items: the key range is bisected, and a range whose item count and fingerprint are equal
+     * in both trees is skipped without visiting its items. the trees need not share nodes or shape.
+     * a changed info whose String.hashCode equals the old one's at the same key goes unnoticed.
+     * precondition: from and to were created with Aggregator.fingerprint()
+     * complexity: O(d * log^2(n)) for d differing items
+     */
+    public static List<Change> diff(AVLTree from, AVLTree to) {
+        if (from.aggregator != FINGERPRINT || to.aggregator != FINGERPRINT)
+            throw new IllegalArgumentException("diff needs trees created with Aggregator.fingerprint()");
+        List<Change> res = new ArrayList<>();
+        diffRange(from, to, Integer.MIN_VALUE, Integer.MAX_VALUE, res);
+        return res;
+    }
+
+    /**
+     * adds the changes turning the items of from with lo <= key <= hi into those of to.
+     * a range with more than DIFF_LEAF items and different fingerprints is split at the median key of
+     * the tree holding more of its items, so each half holds fewer of them.
+     * complexity: O(d * log^2(n)) for d differing items in the range
+     */
+    private static void diffRange(AVLTree from, AVLTree to, int lo, int hi, List<Change> res) {
+        int fromCount = from.countRange(lo, hi);
+        int toCount = to.countRange(lo, hi);
+        if (fromCount == toCount && (fromCount == 0 || from.aggregate(lo, hi) == to.aggregate(lo, hi)))
+            return;
+        if (fromCount + toCount <= DIFF_LEAF) {
+            diffItems(from.selectNode(from.rank(lo)), to.selectNode(to.rank(lo)), from, to, hi, res);
+            return;
+        }
+        AVLTree larger = fromCount >= toCount ? from : to;
+        int mid = larger.selectNode(larger.rank(lo) + Math.max(fromCount, toCount) / 2).getKey();
+        diffRange(from, to, lo, mid - 1, res);
+        diffRange(from, to, mid, hi, res);
+    }
+
+    /**
+     * merges the items of from and to starting at the given nodes and up to key hi, adding a change for
+     * each item that differs.
+     * complexity: O(items in the range)
+     */
+    private static void diffItems(IAVLNode a, IAVLNode b, AVLTree from, AVLTree to, int hi, List<Change> res) {
+        if (a != null && a.getKey() > hi)
+            a = null;
+        if (b != null && b.getKey() > hi)
+            b = null;
+        while (a != null || b != null) {
+            if (b == null || (a != null && a.getKey() < b.getKey())) {
+                res.add(new Change(0, Change.Kind.DELETE, a.getKey(), null));
+                a = nextInRange(from, a, hi);
+            } else if (a == null || b.getKey() < a.getKey()) {
+                res.add(new Change(0, Change.Kind.INSERT, b.getKey(), b.getValue()));
+                b = nextInRange(to, b, hi);
+            } else {
+                String info = b.getValue();
+                if (info == null ? a.getValue() != null : !info.equals(a.getValue()))
+                    res.add(new Change(0, Change.Kind.INSERT, b.getKey(), info));
+                a = nextInRange(from, a, hi);
+                b = nextInRange(to, b, hi);
+            }
+        }
+    }
+
+    private static IAVLNode nextInRange(AVLTree tree, IAVLNode node, int hi) {
+        IAVLNode next = tree.nextNode(node);
+        return next == null || next.getKey() > hi ? null : next;
+    }
+
+    /**
+     * returns the number of items with lo <= key <= hi.
+     * complexity: O(logn)
+     */
+    private int countRange(int lo, int hi) {
+        int upTo = hi == Integer.MAX_VALUE ? this.size : rank(hi + 1);
+        return Math.max(0, upTo - rank(lo));
+    }
+
+    /**
+     * public void setNodePool(int capacity)
+     * <p>
+     * Keeps up to capacity deleted nodes for reuse by later inserts and joins (capacity 0 turns the pool off),
+     * so steady insert/delete churn allocates no nodes.
+     * a node handed out by searchNode, searchAllNodes, getRoot, successor, predecessor or select (or held
+     * by an AVLTreeMap entry) may still be in use, and from it the whole tree can be reached - so once any
+     * node was handed out, deleted nodes are not recycled until releaseNodes() is called.
+     * nodes passed in to join(x, t) by the caller are never recycled.
+     * precondition: capacity >= 0
+     * complexity: O(capacity)
+     */
+    public void setNodePool(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must be non-negative");
+        IAVLNode[] prev = this.pool;
+        this.pool = capacity == 0 ? null : new IAVLNode[capacity];
+        int keep = Math.min(this.pooled, capacity);
+        if (keep > 0)
+            System.arraycopy(prev, 0, this.pool, 0, keep);
+        this.pooled = keep;
+    }
+
+    /**
+     * public void releaseNodes()
+     * <p>
+     * Declares that no node handed out by this tree (see setNodePool) is used anymore,
+     * so deleted nodes can be recycled again.
+     * complexity: O(1)
+     */
+    public void releaseNodes() {
+        this.exposed = false;
+    }
+
+    /**
+     * public int pooledNodes()
+     * <p>
+     * Returns the number of deleted nodes currently kept for reuse.
+     * complexity: O(1)
+     */
+    public int pooledNodes() {
+        return this.pooled;
+    }
+
+    /**
+     * clears a node that was unlinked from the tree and keeps it in the pool, if the pool has room,
+     * no node was handed out, and the node was allocated by a tree (not passed in by the caller).
+     * complexity: O(1)
+     */
+    private void recycle(IAVLNode node) {
+        if (this.pooled == (this.pool == null ? 0 : this.pool.length) || this.exposed
+                || !(node instanceof TreeNode || node instanceof AggregateNode))
+            return;
+        AVLNode n = (AVLNode) node;
+        n.val = null;
+        n.left = AVLNode.virNode;
+        n.right = AVLNode.virNode;
+        n.parent = null;
+        n.height = 0;
+        n.size = 1;
+        this.pool[this.pooled++] = n;
+    }
+
+    /**
+     * public long aggregate(int lo, int hi)
+     * <p>
+     * Returns the aggregate (see Aggregator) over all items with lo <= key <= hi,
+     * or the aggregator's identity if there are none.
+     * combines O(logn) maintained subtree aggregates instead of visiting the items.
+     * precondition: the tree was created with an aggregator
+     * complexity: O(logn)
+     */
+    public long aggregate(int lo, int hi) {
+        if (this.aggregator == null)
+            throw new IllegalStateException("the tree was created without an aggregator");
+        if (this.size == 0 || lo > hi)
+            return this.aggregator.identity();
+        // finding the highest node inside [lo, hi], both boundary paths start under it
+        IAVLNode node = this.root;
+        while (node.isRealNode() && (node.getKey() < lo || node.getKey() > hi)) {
+            node = node.getKey() < lo ? node.getRight() : node.getLeft();
+        }
+        if (!node.isRealNode())
+            return this.aggregator.identity();
+        // keys >= lo in the left subtree, collected right to left
+        long left = this.aggregator.identity();
+        for (IAVLNode curr = node.getLeft(); curr.isRealNode(); ) {
+            if (curr.getKey() >= lo) {
+                left = this.aggregator.combine(this.aggregator.combine(liftOf(curr), aggregateOf(curr.getRight())), left);
+                curr = curr.getLeft();
+            } else {
+                curr = curr.getRight();
+            }
+        }
+        // keys <= hi in the right subtree, collected left to right
+        long right = this.aggregator.identity();
+        for (IAVLNode curr = node.getRight(); curr.isRealNode(); ) {
+            if (curr.getKey() <= hi) {
+                right = this.aggregator.combine(right, this.aggregator.combine(aggregateOf(curr.getLeft()), liftOf(curr)));
+                curr = curr.getRight();
+            } else {
+                curr = curr.getLeft();
+            }
+        }
+        return this.aggregator.combine(this.aggregator.combine(left, liftOf(node)), right);
+    }
+
+    /**
+     * returns the maintained aggregate of node's subtree, the identity for virtual nodes.
+     * complexity: O(1)
+     */
+    private long aggregateOf(IAVLNode node) {
+        return node.isRealNode() ? ((AggregateNode) node).aggregate : this.aggregator.identity();
+    }
+
+    /**
+     * returns the aggregator's value of the single item in node.
+     * complexity: O(1)
+     */
+    private long liftOf(IAVLNode node) {
+        return this.aggregator.lift(node.getKey(), node.getValue());
+    }
+
+    /**
+     * private void resetNode(IAVLNode node)
+     * sets node's size, and its aggregate if the tree has an aggregator, from its children and item.
+     * the nodes do not keep the aggregator themselves, so every structural change in the tree goes through here.
+     * precondition: node.isRealNode()
+     * complexity: O(1)
+     */
+    private void resetNode(IAVLNode node) {
+        node.resetSize();
+        if (this.aggregator != null) {
+            long res = this.aggregator.combine(aggregateOf(node.getLeft()), liftOf(node));
+            ((AggregateNode) node).aggregate = this.aggregator.combine(res, aggregateOf(node.getRight()));
+        }
+    }
+
     /**
      * public int insert(int k, String i)
      * <p>
@@ -107,16 +728,204 @@ public class AVLTree {
      * returns the number of rebalancing operations, or 0 if no rebalancing operations were necessary.
      * promotion/rotation - counted as one rebalnce operation, double-rotation is counted as 2.
      * returns -1 if an item with key k already exists in the tree.
+     * in relaxed balance mode only the bounded fix-up steps are done (see setRelaxedBalance).
      * complexity: O(logn)
      */
     public int insert(int k, String i) {
+        int res = this.pending != null ? insertRelaxed(k, i) : insert(null, k, i);
+        if (res != -1 && this.feed != null)
+            this.feed.append(Change.Kind.INSERT, k, i);
+        if (this.trace != null)
+            this.trace.insert(this, k, i);
+        return res;
+    }
+
+    /**
+     * private int insert(IAVLNode node, int k, String i)
+     * inserts node into the tree, or a new node (k, i) if node is null
+     * (allocated only once we know k is not in the tree), and rebalances.
+     * returns the same values as insert(int, String).
+     * precondition: node == null, or node is a detached leaf (virtual children, height 0, no parent) with key k
+     * postcondition: None.
+     * complexity: O(logn)
+     */
+    private int insert(IAVLNode node, int k, String i) {
+        IAVLNode newNode = link(node, k, i);
+        if (newNode == null)
+            return -1;
+        // starting rebalance process from new node up
+        return rebalanceFromNode(newNode);
+    }
+
+    /**
+     * private int insertRelaxed(int k, String i)
+     * inserts a new node (k, i) and updates the sizes above it, leaving its parent's height to the fix-up queue.
+     * returns the number of rebalancing operations of the fix-up steps done, or -1 if an item with key k
+     * already exists in the tree.
+     * precondition: the tree is in relaxed balance mode
+     * complexity: O(depth + maxFixups)
+     */
+    private int insertRelaxed(int k, String i) {
+        IAVLNode newNode = link(null, k, i);
+        if (newNode == null)
+            return -1;
+        for (IAVLNode node = newNode; node != null; node = node.getParent()) {
+            resetNode(node);
+        }
+        if (newNode.getParent() != null)
+            this.pending.add(newNode.getParent());
+        return fixUpAfterUpdate();
+    }
+
+    /**
+     * public void setRelaxedBalance(int fixupsPerUpdate)
+     * <p>
+     * Switches relaxed balance mode on (fixupsPerUpdate > 0) or off (fixupsPerUpdate == 0).
+     * in relaxed mode insert and delete keep sizes (and aggregates) exact on their way up, but only queue
+     * the height problem they leave at the parent of the changed node. every update then does at most
+     * fixupsPerUpdate fix-up steps from that queue, each local to one node as in chromatic trees: it either
+     * corrects the node's height and moves the problem to its parent, or does one single or double rotation.
+     * the rebalancing work of an update is so bounded by a constant, while the queue is worked off as
+     * the updates come instead of letting unbalanced chains grow until a later rebalance.
+     * an AVL update leaves about 2-3 fix-up steps of work amortized, so with fixupsPerUpdate below 4
+     * sorted or clustered runs can outpace the steps; the queue is then held at MAX_PENDING problems
+     * by working past the budget, which bounds how far the tree drifts from balance for any setting.
+     * search never depends on balance, and rank, select and aggregates only on the exact sizes.
+     * rebalance() works off the whole queue; split, join and memoryStats do so first, and so does
+     * switching the mode off.
+     * precondition: fixupsPerUpdate >= 0, and the tree keeps BalancePolicy.AVL
+     * (otherwise an IllegalArgumentException or IllegalStateException is thrown)
+     * complexity: O(1), or that of rebalance() when switching off
+     */
+    public void setRelaxedBalance(int fixupsPerUpdate) {
+        if (fixupsPerUpdate < 0)
+            throw new IllegalArgumentException("fixupsPerUpdate must be non-negative");
+        if (fixupsPerUpdate > 0 && this.policy != BalancePolicy.AVL)
+            throw new IllegalStateException("relaxed balance needs BalancePolicy.AVL");
+        if (fixupsPerUpdate == 0) {
+            rebalance();
+            this.pending = null;
+        } else if (this.pending == null) {
+            this.pending = new ArrayDeque<>();
+        }
+        this.maxFixups = fixupsPerUpdate;
+    }
+
+    /**
+     * public int rebalance()
+     * <p>
+     * Works off every queued fix-up of relaxed balance mode (see setRelaxedBalance),
+     * leaving a valid AVL tree.
+     * returns the number of rebalancing operations done (0 if nothing was pending).
+     * complexity: O(number of fix-up steps), each step O(1)
+     */
+    public int rebalance() {
+        return this.pending == null ? 0 : fixUp(Integer.MAX_VALUE);
+    }
+
+    /**
+     * the fix-up steps of a relaxed update: maxFixups of them, and more while the queue holds
+     * over MAX_PENDING problems.
+     * returns the number of rebalancing operations done.
+     * precondition: the tree is in relaxed balance mode
+     * complexity: O(maxFixups) amortized
+     */
+    private int fixUpAfterUpdate() {
+        int count = fixUp(this.maxFixups);
+        while (this.pending.size() > MAX_PENDING) {
+            count += fixUpStep(this.pending.poll());
+        }
+        return count;
+    }
+
+    /**
+     * does up to budget fix-up steps from the queue.
+     * returns the number of rebalancing operations done.
+     * precondition: the tree is in relaxed balance mode
+     * complexity: O(budget)
+     */
+    private int fixUp(int budget) {
+        int count = 0;
+        for (int steps = 0; steps < budget && !this.pending.isEmpty(); steps++) {
+            count += fixUpStep(this.pending.poll());
+        }
+        return count;
+    }
+
+    /**
+     * one fix-up step at node: if its subtrees' heights differ by at most 1, corrects its height and,
+     * if that changed it, queues its parent. otherwise rotates the taller child (or that child's inner
+     * child, by a double rotation) up over node and queues whatever the rotation left unbalanced.
+     * nodes deleted since they were queued are skipped (deletion detaches them from their parent).
+     * returns the number of rebalancing operations done (height change/rotation 1, double rotation 2).
+     * complexity: O(1)
+     */
+    private int fixUpStep(IAVLNode node) {
+        if (node.getParent() == null && node != this.root)
+            return 0;
+        int diff = node.getLeft().getHeight() - node.getRight().getHeight();
+        if (diff >= -1 && diff <= 1) {
+            if (node.fixHeight() == 0)
+                return 0;
+            if (node.getParent() != null)
+                this.pending.add(node.getParent());
+            return 1;
+        }
+        int prevHeight = node.getHeight();
+        IAVLNode child = diff > 0 ? node.getLeft() : node.getRight();
+        int outer = diff > 0 ? child.getLeft().getHeight() : child.getRight().getHeight();
+        int inner = diff > 0 ? child.getRight().getHeight() : child.getLeft().getHeight();
+        IAVLNode top;
+        int count;
+        if (outer >= inner) {
+            top = child;
+            count = 1;
+            if (diff > 0)
+                rightRotation(child);
+            else
+                leftRotation(child);
+        } else {
+            top = diff > 0 ? child.getRight() : child.getLeft();
+            count = 2;
+            if (diff > 0)
+                leftRightRotation(top);
+            else
+                rightLeftRotation(top);
+            queueIfUnbalanced(child);
+        }
+        // subtrees far apart in height (the queue lagged behind) may need more than one rotation
+        queueIfUnbalanced(node);
+        queueIfUnbalanced(top);
+        if (top.getHeight() != prevHeight && top.getParent() != null)
+            this.pending.add(top.getParent());
+        return count;
+    }
+
+    /**
+     * queues node for a fix-up if its subtrees' heights differ by more than 1.
+     * complexity: O(1)
+     */
+    private void queueIfUnbalanced(IAVLNode node) {
+        int diff = node.getLeft().getHeight() - node.getRight().getHeight();
+        if (diff < -1 || diff > 1)
+            this.pending.add(node);
+    }
+
+    /**
+     * private IAVLNode link(IAVLNode node, int k, String i)
+     * attaches node (or a new node (k, i) if node is null) as a leaf at its place in the tree,
+     * updating min, max and size, without rebalancing.
+     * returns the attached node, or null if an item with key k already exists in the tree.
+     * complexity: O(depth)
+     */
+    private IAVLNode link(IAVLNode node, int k, String i) {
         // addressing an edge case if the tree is empty
         if (this.root == null) {
-            this.root = new AVLNode(k, i);
+            this.root = node != null ? node : newNode(k, i);
             this.min = this.root;
             this.max = this.root;
             this.size++;
-            return 0;
+            return this.root;
         }
 
         // determining where to insert the new node - O(logn)
@@ -129,12 +938,12 @@ public class AVLTree {
             } else if (temp.getKey() > k) {
                 temp = temp.getLeft();
             } else {
-                return -1;
+                return null;
             }
         }
 
         // inserting the node at the place we found earlier
-        IAVLNode newNode = new AVLNode(k, i);
+        IAVLNode newNode = node != null ? node : newNode(k, i);
         if (tempPar.getKey() > k)
             tempPar.setLeft(newNode);
         else
@@ -147,12 +956,9 @@ public class AVLTree {
         if (newNode.getKey() < this.min.getKey())
             this.min = newNode;
         this.size++;
-
-        // starting rebalance process from new node up
-        return rebalanceFromNode(newNode);
+        return newNode;
     }
 
-
     /**
      * determines if the node we're currently at needs a balance operation or not
      * complexity: O(1)
@@ -163,6 +969,11 @@ public class AVLTree {
         }
         int rightDiff = (node.getHeight() - node.getRight().getHeight());
         int leftDiff = (node.getHeight() - node.getLeft().getHeight());
+        if (this.policy == BalancePolicy.WAVL) {
+            // a fix is not needed if: 1 =< rankDiffs =< 2, and a leaf is not a 2,2 node
+            return !((rightDiff >= 1) && (rightDiff <= 2) && (leftDiff >= 1) && (leftDiff <= 2)
+                    && !(leftDiff + rightDiff == 4 && isLeaf(node)));
+        }
         // a fix is not needed if: 1 =< rankDiffs =< 2 and also rightRankDiff + leftRankDiff < 4 (not bot equal to 2)
         return !((rightDiff >= 1) && (rightDiff <= 2) && (leftDiff >= 1) && (leftDiff <= 2) && (leftDiff + rightDiff < 4));
     }
@@ -182,7 +993,7 @@ public class AVLTree {
      */
     private int promote(IAVLNode node) {
         node.setHeight(node.getHeight() + 1);
-        node.resetSize();
+        resetNode(node);
         return 1;
     }
 
@@ -252,9 +1063,9 @@ public class AVLTree {
         tempParent.setRight(node.getLeft());
         node.setLeft(tempParent);
         sum += tempParent.fixHeight();
-        tempParent.resetSize();
+        resetNode(tempParent);
         sum += node.fixHeight();
-        node.resetSize();
+        resetNode(node);
         return sum;
     }
 
@@ -273,9 +1084,9 @@ public class AVLTree {
         tempParent.setLeft(node.getRight());
         node.setRight(tempParent);
         sum += tempParent.fixHeight();
-        tempParent.resetSize();
+        resetNode(tempParent);
         sum += node.fixHeight();
-        node.resetSize();
+        resetNode(node);
         return sum;
     }
 
@@ -304,26 +1115,41 @@ public class AVLTree {
      * returns the number of rebalancing operations, or 0 if no rebalancing operations were needed.
      * demotion/rotation - counted as one rebalnce operation, double-rotation is counted as 2.
      * returns -1 if an item with key k was not found in the tree.
+     * under BalancePolicy.WAVL at most two rotations are done, the rest are demotions.
      * complexity: O(logn)
      */
     public int delete(int k) {
-        IAVLNode nodeToDelete = searchNode(k);
+        int res = deleteKey(k);
+        if (res != -1 && this.feed != null)
+            this.feed.append(Change.Kind.DELETE, k, null);
+        if (this.trace != null)
+            this.trace.delete(this, k);
+        return res;
+    }
+
+    /**
+     * deletes the item with key k, as delete(k) but without recording the change.
+     * complexity: O(logn)
+     */
+    private int deleteKey(int k) {
+        IAVLNode nodeToDelete = findNode(k);
         if (nodeToDelete == null) return -1;
         int stepCount = 0;
         this.size--;
 
         // addressing a deletion from a 1 sized tree
         if (size == 0) {
-            setToEmptyTree();
+            clear();
+            recycle(nodeToDelete);
             return 0;
         }
 
         // updating min and max if necessary
         if (this.min.getKey() == k) {
-            this.min = successor(this.min);
+            this.min = nextNode(this.min);
         }
         if (this.max.getKey() == k) {
-            this.max = predecessor(this.max);
+            this.max = prevNode(this.max);
         }
 
 
@@ -331,10 +1157,22 @@ public class AVLTree {
         // addressing a deletion of a binary node
         if (nodeToDelete.getRight().isRealNode() && nodeToDelete.getLeft().isRealNode()) {
             startRebalanceNode = removeBinary(nodeToDelete);
+            // the successor took over nodeToDelete's place and height, and so any fix-up queued for it
+            if (this.pending != null)
+                this.pending.add(nodeToDelete.getLeft().getParent());
         } else {
             // addressing a deletion of an unary/leaf node
             startRebalanceNode = removeUnaryOrLeaf(nodeToDelete);
         }
+        recycle(nodeToDelete);
+        if (this.pending != null) {
+            // detached, so a queued fix-up of the deleted node is skipped
+            nodeToDelete.setParent(null);
+            return deleteRelaxed(startRebalanceNode);
+        }
+        if (this.policy == BalancePolicy.WAVL) {
+            return wavlDeletionRebalance(startRebalanceNode);
+        }
         // going up untill the root, rebalancing the tree and updating node sizes
         while (startRebalanceNode != null) {
             if (isFixNeeded(startRebalanceNode)) {
@@ -346,13 +1184,29 @@ public class AVLTree {
                     startRebalanceNode = startRebalanceNode.getParent().getParent();
                 }
             } else {
-                startRebalanceNode.resetSize();
+                resetNode(startRebalanceNode);
                 startRebalanceNode = startRebalanceNode.getParent();
             }
         }
         return stepCount;
     }
 
+    /**
+     * updates the sizes from node (where the deleted node was unlinked) up to the root,
+     * leaving node's height to the fix-up queue.
+     * returns the number of rebalancing operations of the fix-up steps done.
+     * precondition: the tree is in relaxed balance mode
+     * complexity: O(depth + maxFixups)
+     */
+    private int deleteRelaxed(IAVLNode node) {
+        if (node != null)
+            this.pending.add(node);
+        for (; node != null; node = node.getParent()) {
+            resetNode(node);
+        }
+        return fixUpAfterUpdate();
+    }
+
     /**
      * precondtion: nodeToDelete is not a binary node
      * postcondtion $ret is where we want to start rebalancing, if null then we deleted the root - no need to rebalance
@@ -404,10 +1258,24 @@ public class AVLTree {
      * complexity: O(1)
      */
     public void setToEmptyTree() {
+        clear();
+        if (this.feed != null)
+            this.feed.append(Change.Kind.CLEAR, 0, null);
+        if (this.trace != null)
+            this.trace.clear(this);
+    }
+
+    /**
+     * setToEmptyTree() without recording the change
+     * complexity: O(1)
+     */
+    private void clear() {
         this.size = 0;
         this.min = null;
         this.max = null;
         this.root = null;
+        if (this.pending != null)
+            this.pending.clear();
     }
 
 
@@ -419,7 +1287,7 @@ public class AVLTree {
      */
     public IAVLNode removeBinary(IAVLNode nodeToDelete) {
         // getting the node's successor and removing it from its current location in the tree
-        IAVLNode succ = successor(nodeToDelete); // complexity: O(logn)
+        IAVLNode succ = nextNode(nodeToDelete); // complexity: O(logn)
         boolean isLeftChild = nodeToDelete.isLeftChild();
         IAVLNode nodeToContinue = removeUnaryOrLeaf(succ);
         succ.setHeight(nodeToDelete.getHeight());
@@ -446,6 +1314,9 @@ public class AVLTree {
             nodeToDelete.getLeft().setParent(succ);
             succ.setLeft(nodeToDelete.getLeft());
         }
+        // if the successor was nodeToDelete's own child, the rebalance must start at the successor itself
+        if (nodeToContinue == nodeToDelete)
+            return succ;
         return nodeToContinue;
     }
 
@@ -484,6 +1355,90 @@ public class AVLTree {
         }
     }
 
+    /**
+     * rebalances after a deletion under the WAVL rules, starting at the parent of the removed
+     * position and going up untill the root, updating node sizes.
+     * a 2,2 leaf is demoted; a 3-child whose sibling is a 2-child, or a 2,2 1-child, is fixed by
+     * demotions that move the problem up; otherwise a single or double rotation ends it.
+     * return the amount of rebalancing operations done in the process, counted as in delete
+     * complexity: O(logn)
+     */
+    private int wavlDeletionRebalance(IAVLNode node) {
+        int stepCount = 0;
+        while (node != null) {
+            int leftDiff = node.getHeight() - node.getLeft().getHeight();
+            int rightDiff = node.getHeight() - node.getRight().getHeight();
+            if (leftDiff == 2 && rightDiff == 2 && isLeaf(node)) {
+                stepCount += demote(node);
+                node = node.getParent();
+                continue;
+            }
+            if (leftDiff != 3 && rightDiff != 3) {
+                break;
+            }
+            boolean shortLeft = leftDiff == 3;
+            IAVLNode sibling = shortLeft ? node.getRight() : node.getLeft();
+            if (node.getHeight() - sibling.getHeight() == 2) {
+                stepCount += demote(node);
+                node = node.getParent();
+                continue;
+            }
+            IAVLNode outer = shortLeft ? sibling.getRight() : sibling.getLeft();
+            IAVLNode inner = shortLeft ? sibling.getLeft() : sibling.getRight();
+            int outerDiff = sibling.getHeight() - outer.getHeight();
+            if (outerDiff == 2 && sibling.getHeight() - inner.getHeight() == 2) {
+                stepCount += demote(node) + demote(sibling);
+                node = node.getParent();
+                continue;
+            }
+            int rank = node.getHeight();
+            if (outerDiff == 1) {
+                stepCount += 1;
+                if (shortLeft)
+                    leftRotation(sibling);
+                else
+                    rightRotation(sibling);
+                stepCount += setRank(sibling, rank);
+                stepCount += setRank(node, isLeaf(node) ? rank - 2 : rank - 1);
+            } else {
+                stepCount += 2;
+                if (shortLeft)
+                    rightLeftRotation(inner);
+                else
+                    leftRightRotation(inner);
+                stepCount += setRank(inner, rank);
+                stepCount += setRank(sibling, rank - 2);
+                stepCount += setRank(node, rank - 2);
+            }
+            break;
+        }
+        // the rank changes are done, only the sizes above node are left to update
+        while (node != null) {
+            resetNode(node);
+            node = node.getParent();
+        }
+        return stepCount;
+    }
+
+    /**
+     * sets node's rank (height field) to rank,
+     * return the amount the rank changed by
+     * complexity: O(1)
+     */
+    private static int setRank(IAVLNode node, int rank) {
+        int prevRank = node.getHeight();
+        node.setHeight(rank);
+        return Math.abs(rank - prevRank);
+    }
+
+    /**
+     * returns true if both of node's children are virtual
+     * complexity: O(1)
+     */
+    private static boolean isLeaf(IAVLNode node) {
+        return !node.getLeft().isRealNode() && !node.getRight().isRealNode();
+    }
+
     /**
      * Demotes the give node
      * return the amount of rebalancing operations done in the process (1)
@@ -491,7 +1446,7 @@ public class AVLTree {
      */
     private int demote(IAVLNode node) {
         node.setHeight(node.getHeight() - 1);
-        node.resetSize();
+        resetNode(node);
         return 1;
     }
 
@@ -533,9 +1488,7 @@ public class AVLTree {
      */
     public int[] keysToArray() {
         int[] arr = new int[this.size];
-        if (size > 0) {
-            infoToArrayRec(this.root, null, arr, new int[]{0}, true);
-        }
+        toArrays(arr, null);
         return arr;
     }
 
@@ -549,26 +1502,159 @@ public class AVLTree {
      */
     public String[] infoToArray() {
         String[] arr = new String[this.size];
-        infoToArrayRec(this.root, arr, null, new int[]{0}, false);
+        toArrays(null, arr);
         return arr;
     }
 
     /**
-     * returns an array of the tree's values in-order according to their respective keys.
-     * complexity: O(n)
+     * public void toArrays(int[] keys, String[] infos)
+     * <p>
+     * Fills keys[0..size) with the tree's keys in sorted order and infos[0..size) with their
+     * respective info, in a single traversal. either array may be null to skip it.
+     * every subtree's offset in the output is known from the sizes, so trees of at least
+     * PARALLEL_GRAIN items are traversed in parallel on the common fork/join pool.
+     * precondition: the non-null arrays have length >= size().
+     * complexity: O(n) work, O(n / p + logn) time on p cores
      */
-    private void infoToArrayRec(IAVLNode node, String[] inOrder, int[] inOrderKeys, int[] index, boolean isKeys) {
-        if (node.getLeft().isRealNode()) {
-            infoToArrayRec(node.getLeft(), inOrder, inOrderKeys, index, isKeys);
-        }
-        if (isKeys)
-            inOrderKeys[index[0]] = node.getKey();
+    public void toArrays(int[] keys, String[] infos) {
+        if (this.size == 0)
+            return;
+        if (this.size < PARALLEL_GRAIN)
+            toArraysRec(this.root, keys, infos, 0);
         else
-            inOrder[index[0]] = node.getValue();
-        index[0] += 1;
-        if (node.getRight().isRealNode()) {
-            infoToArrayRec(node.getRight(), inOrder, inOrderKeys, index, isKeys);
+            new ToArraysTask(this.root, keys, infos, 0).invoke();
+    }
+
+    /**
+     * writes the keys and info of node's subtree in-order into keys and infos, starting at offset.
+     * complexity: O(size of node's subtree)
+     */
+    private static void toArraysRec(IAVLNode node, int[] keys, String[] infos, int offset) {
+        while (node.isRealNode()) {
+            toArraysRec(node.getLeft(), keys, infos, offset);
+            offset += node.getLeft().getSize();
+            if (keys != null)
+                keys[offset] = node.getKey();
+            if (infos != null)
+                infos[offset] = node.getValue();
+            offset++;
+            node = node.getRight();
+        }
+    }
+
+    /**
+     * public static AVLTree fromSorted(int[] keys, String[] infos)
+     * <p>
+     * Returns a new AVL tree holding the items (keys[j], infos[j]), built directly as a balanced
+     * tree instead of by n inserts. inputs of at least PARALLEL_GRAIN items are built in parallel
+     * on the common fork/join pool.
+     * precondition: keys is strictly increasing, does not contain -1, and keys.length == infos.length
+     * (otherwise an IllegalArgumentException is thrown).
+     * complexity: O(n) work, O(n / p + logn) time on p cores
+     */
+    public static AVLTree fromSorted(int[] keys, String[] infos) {
+        return fromSorted(keys, infos, null, BalancePolicy.AVL);
+    }
+
+    /**
+     * public static AVLTree fromSorted(int[] keys, String[] infos, Aggregator aggregator, BalancePolicy policy)
+     * <p>
+     * As fromSorted(keys, infos), for a tree created with AVLTree(aggregator, policy).
+     * complexity: O(n) work, O(n / p + logn) time on p cores
+     */
+    public static AVLTree fromSorted(int[] keys, String[] infos, Aggregator aggregator, BalancePolicy policy) {
+        if (keys.length != infos.length)
+            throw new IllegalArgumentException("keys and infos differ in length");
+        AVLTree tree = new AVLTree(aggregator, policy);
+        if (keys.length == 0)
+            return tree;
+        if (keys.length < PARALLEL_GRAIN) {
+            tree.root = tree.buildRec(keys, infos, 0, keys.length);
+        } else {
+            BuildTask task = new BuildTask(tree, keys, infos, 0, keys.length);
+            task.invoke();
+            tree.root = task.node;
+        }
+        tree.root.setParent(null);
+        tree.size = keys.length;
+        tree.resetMinAndMax();
+        return tree;
+    }
+
+    /**
+     * builds a balanced subtree of the items in [lo, hi) of the sorted arrays, and returns its root
+     * (the virtual node if the range is empty). each index is the middle of exactly one range, so
+     * checking it against its predecessor validates the whole input.
+     * complexity: O(hi - lo)
+     */
+    private IAVLNode buildRec(int[] keys, String[] infos, int lo, int hi) {
+        if (lo >= hi)
+            return AVLNode.virNode;
+        int mid = (lo + hi) >>> 1;
+        return buildNode(keys, infos, mid, buildRec(keys, infos, lo, mid), buildRec(keys, infos, mid + 1, hi));
+    }
+
+    /**
+     * creates the node for index mid of the sorted arrays over the already built left and right subtrees.
+     * complexity: O(1)
+     */
+    private IAVLNode buildNode(int[] keys, String[] infos, int mid, IAVLNode left, IAVLNode right) {
+        if (keys[mid] == -1)
+            throw new IllegalArgumentException("key -1 is reserved");
+        if (mid > 0 && keys[mid - 1] >= keys[mid])
+            throw new IllegalArgumentException("keys are not strictly increasing at index " + mid);
+        IAVLNode node = newNode(keys[mid], infos[mid]);
+        node.setLeft(left);
+        node.setRight(right);
+        if (left.isRealNode())
+            left.setParent(node);
+        if (right.isRealNode())
+            right.setParent(node);
+        node.fixHeight();
+        resetNode(node);
+        return node;
+    }
+
+    /**
+     * public FrozenAVLTree freeze()
+     * <p>
+     * Returns an immutable read-only copy of the tree, laid out in contiguous arrays
+     * for fast lookups. later changes to this tree are not reflected in the copy.
+     * complexity: O(n)
+     */
+    public FrozenAVLTree freeze() {
+        int[] keys = new int[this.size];
+        String[] infos = new String[this.size];
+        toArrays(keys, infos);
+        return new FrozenAVLTree(keys, infos);
+    }
+
+    /**
+     * public MemoryStats memoryStats()
+     * <p>
+     * Returns an estimate of the heap used by the tree: node count, node and value bytes,
+     * bytes per entry, and the tree's height against the ideal height for its size.
+     * node bytes and the height are exact (O(1)), value bytes are measured exactly for small trees
+     * and extrapolated from MEMORY_SAMPLES evenly spaced ranks otherwise, so this is cheap to call
+     * on a live tree.
+     * complexity: O(MEMORY_SAMPLES * logn)
+     */
+    public MemoryStats memoryStats() {
+        rebalance();
+        long valueBytes = 0;
+        if (this.size <= MEMORY_SAMPLES) {
+            for (int i = 0; i < this.size; i++) {
+                valueBytes += MemoryStats.stringBytes(selectNode(i).getValue());
+            }
+        } else {
+            for (int s = 0; s < MEMORY_SAMPLES; s++) {
+                valueBytes += MemoryStats.stringBytes(selectNode((int) ((long) s * this.size / MEMORY_SAMPLES)).getValue());
+            }
+            valueBytes = valueBytes * this.size / MEMORY_SAMPLES;
         }
+        // a tree with an aggregator holds only AggregateNodes (join copies other nodes into one)
+        long nodeBytes = this.aggregator != null ? MemoryStats.AGGREGATE_NODE_BYTES : MemoryStats.NODE_BYTES;
+        return new MemoryStats(this.size, this.size * nodeBytes, valueBytes, getTreeRank() + 1);
     }
 
     /**
@@ -594,6 +1680,7 @@ public class AVLTree {
      * complexity: O(1)
      */
     public IAVLNode getRoot() {
+        this.exposed = true;
         return this.root;
     }
 
@@ -603,6 +1690,15 @@ public class AVLTree {
      * complexity: O(logn)
      */
     public IAVLNode successor(IAVLNode node) {
+        this.exposed = true;
+        return nextNode(node);
+    }
+
+    /**
+     * successor(node) without counting as a handed out node (see releaseNodes)
+     * complexity: O(logn)
+     */
+    private IAVLNode nextNode(IAVLNode node) {
         if (node == max) {
             return null;
         }
@@ -627,6 +1723,15 @@ public class AVLTree {
      * complexity: O(logn)
      */
     public IAVLNode predecessor(IAVLNode node) {
+        this.exposed = true;
+        return prevNode(node);
+    }
+
+    /**
+     * predecessor(node) without counting as a handed out node (see releaseNodes)
+     * complexity: O(logn)
+     */
+    private IAVLNode prevNode(IAVLNode node) {
         if (node == min) return null;
         else {
             if (node.getLeft().isRealNode()) {
@@ -645,73 +1750,275 @@ public class AVLTree {
         }
     }
 
+    /**
+     * public int rank(int k)
+     * <p>
+     * Returns the number of keys in the tree that are smaller than k,
+     * using the subtree sizes to descend.
+     * precondition: none
+     * postcondition: none
+     * complexity: O(logn)
+     */
+    public int rank(int k) {
+        int res = 0;
+        IAVLNode curr = this.root;
+        while (curr != null && curr.isRealNode()) {
+            if (curr.getKey() < k) {
+                res += curr.getLeft().getSize() + 1;
+                curr = curr.getRight();
+            } else {
+                curr = curr.getLeft();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * private void replaceValue(IAVLNode node, String i)
+     * sets the info of a node in the tree, refreshing the subtree aggregates above it if there are any.
+     * precondition: node is in the tree
+     * postcondition: None.
+     * complexity: O(1), O(logn) with an aggregator
+     */
+    private void replaceValue(IAVLNode node, String i) {
+        ((AVLNode) node).val = i;
+        if (this.feed != null)
+            this.feed.append(Change.Kind.REPLACE, node.getKey(), i);
+        if (this.aggregator != null) {
+            for (IAVLNode curr = node; curr != null; curr = curr.getParent()) {
+                resetNode(curr);
+            }
+        }
+    }
+
+    /**
+     * public IAVLNode select(int i)
+     * <p>
+     * Returns the node with the i'th smallest key in the tree (0-based),
+     * using the subtree sizes to descend.
+     * returns null if i is out of range.
+     * precondition: none
+     * postcondition: none
+     * complexity: O(logn)
+     */
+    public IAVLNode select(int i) {
+        this.exposed = true;
+        return selectNode(i);
+    }
+
+    /**
+     * select(i) without counting as a handed out node (see releaseNodes)
+     * complexity: O(logn)
+     */
+    private IAVLNode selectNode(int i) {
+        if (i < 0 || i >= this.size)
+            return null;
+        IAVLNode curr = this.root;
+        while (curr.isRealNode()) {
+            int leftSize = curr.getLeft().getSize();
+            if (i < leftSize) {
+                curr = curr.getLeft();
+            } else if (i > leftSize) {
+                i -= leftSize + 1;
+                curr = curr.getRight();
+            } else {
+                return curr;
+            }
+        }
+        return null;
+    }
+
 
     /**
      * public string split(int x)
      * <p>
      * splits the tree into 2 trees according to the key x.
      * Returns an array [t1, t2] with two AVL trees. keys(t1) < x < keys(t2).
-     * precondition: search(x) != null (i.e. you can also assume that the tree is not empty)
+     * x need not be in the tree - if it is, its item is dropped (it is in neither t1 nor t2).
+     * precondition: none
      * postcondition: none
      * complexity: O(logn)
      */
     public AVLTree[] split(int x) {
-        IAVLNode xNode = searchNode(x);
-        AVLTree smallerTree = new AVLTree();
-        AVLTree biggerTree = new AVLTree();
-        // computing min/max values for both the trees we will be returning
-        IAVLNode minOfSmaller = getMinAndMaxForSplit(xNode)[0];
-        IAVLNode maxOfBigger = getMinAndMaxForSplit(xNode)[1];
-        IAVLNode maxOfSmaller = predecessor(xNode);
-        IAVLNode minOfBigger = successor(xNode);
-        // adding xNodes' left and right subtrees to smaller/bigger accordingly
-        if (xNode.getLeft().isRealNode())
-            smallerTree = seperateSubTree(xNode.getLeft());
-        if (xNode.getRight().isRealNode())
-            biggerTree = seperateSubTree(xNode.getRight());
-        IAVLNode nextNode = xNode.getParent();
-        // going up until the root, joining all subtrees into smaller/bigger as learned in class
-        while (xNode.getParent() != null) {
-            IAVLNode nodeForJoin = new AVLNode(xNode.getParent().getKey(), xNode.getParent().getValue());
-            if (!xNode.isLeftChild()) {
-                // join smallerTree with xNode and his left subtree
-                smallerTree.join(nodeForJoin, seperateSubTree(xNode.getParent().getLeft()));
+        rebalance();
+        if (this.feed != null)
+            this.feed.append(Change.Kind.SPLIT, x, null);
+        // descending to x, or to the last node on its search path if x is not in the tree
+        IAVLNode parent = null;
+        IAVLNode curr = this.size > 0 ? this.root : AVLNode.virNode;
+        while (curr.isRealNode() && curr.getKey() != x) {
+            parent = curr;
+            curr = x < curr.getKey() ? curr.getLeft() : curr.getRight();
+        }
+        AVLTree[] res = splitAround(curr.isRealNode() ? curr : null, parent, x, 0);
+        if (this.trace != null)
+            this.trace.split(this, TraceRecorder.OP_SPLIT, x, res[0], res[1]);
+        return res;
+    }
+
+    /**
+     * public AVLTree[] splitAt(int index)
+     * <p>
+     * splits the tree by position: Returns an array [t1, t2] where t1 holds the index smallest items
+     * and t2 the rest, keys(t1) < keys(t2). no item is dropped.
+     * the node at the cut is found with the subtree sizes (as in select), and the tree is split around it
+     * as split does, with the cut node joined into t2 as its minimum (into t1 as its maximum if t2 is empty).
+     * precondition: 0 <= index <= size() (otherwise an IndexOutOfBoundsException is thrown)
+     * postcondition: none
+     * complexity: O(logn)
+     */
+    public AVLTree[] splitAt(int index) {
+        if (index < 0 || index > this.size)
+            throw new IndexOutOfBoundsException("index " + index + " out of range for size " + this.size);
+        rebalance();
+        if (this.feed != null)
+            this.feed.append(Change.Kind.SPLIT_AT, index, null);
+        AVLTree[] res;
+        if (this.size == 0) {
+            res = splitAround(null, null, 0, 0);
+        } else {
+            boolean toHigher = index < this.size;
+            IAVLNode cut = selectNode(toHigher ? index : index - 1);
+            res = splitAround(cut, cut.getParent(), cut.getKey(), toHigher ? 1 : -1);
+        }
+        if (this.trace != null)
+            this.trace.split(this, TraceRecorder.OP_SPLIT_AT, index, res[0], res[1]);
+        return res;
+    }
+
+    /**
+     * private AVLTree[] splitAround(IAVLNode node, IAVLNode parent, int x, int keep)
+     * splits the tree into [t1, t2] with keys(t1) < x < keys(t2), where node is the node with key x
+     * (null if x is not in the tree) and parent the last node above it on the search path to x.
+     * node's item is dropped (keep == 0), or joined into t1 as its maximum (keep < 0) or into t2 as
+     * its minimum (keep > 0). the results carry on this tree's pool setting, handed out state,
+     * change feed (after the record the caller appended) and trace recorder.
+     * precondition: the change feed record of the split, if any, was appended
+     * postcondition: none
+     * complexity: O(logn)
+     */
+    private AVLTree[] splitAround(IAVLNode node, IAVLNode parent, int x, int keep) {
+        AVLTree smallerTree = emptyLike();
+        AVLTree biggerTree = emptyLike();
+        if (node != null) {
+            // adding xNodes' left and right subtrees to smaller/bigger accordingly
+            if (node.getLeft().isRealNode())
+                smallerTree = seperateSubTree(node.getLeft());
+            if (node.getRight().isRealNode())
+                biggerTree = seperateSubTree(node.getRight());
+            // a kept node is joined in as an extreme item of its side, like the ancestors below
+            if (keep != 0) {
+                resetToLeaf(node);
+                if (keep < 0)
+                    smallerTree.join(node, emptyLike());
+                else
+                    biggerTree.join(node, emptyLike());
+            }
+        }
+        // going up until the root, joining all subtrees into smaller/bigger as learned in class.
+        // each ancestor is detached and reused as the join node, so its node object moves into the result
+        while (parent != null) {
+            IAVLNode grandParent = parent.getParent();
+            boolean fromLeft = x < parent.getKey();
+            IAVLNode sibling = fromLeft ? parent.getRight() : parent.getLeft();
+            resetToLeaf(parent);
+            if (!fromLeft) {
+                // join smallerTree with the ancestor and its left subtree
+                smallerTree.join(parent, seperateSubTree(sibling));
             } else {
-                // join biggerTree with xNode and his right subtree
-                biggerTree.join(nodeForJoin, seperateSubTree(xNode.getParent().getRight()));
+                // join biggerTree with the ancestor and its right subtree
+                biggerTree.join(parent, seperateSubTree(sibling));
             }
-            xNode = xNode.getParent();
+            parent = grandParent;
         }
-        // updating min/max values for res trees
-        smallerTree.min = minOfSmaller;
-        smallerTree.max = maxOfSmaller;
-        biggerTree.min = minOfBigger;
-        biggerTree.max = maxOfBigger;
+        // updating min/max values for res trees - the seperated subtrees carry placeholder min/max values
+        smallerTree.resetMinAndMax();
+        biggerTree.resetMinAndMax();
+        // the result trees hold this tree's nodes, so they keep its pool setting and handed out state,
+        // and each continues the change feed with the split's record, marked with the side it kept
         AVLTree[] res = {smallerTree, biggerTree};
+        for (AVLTree tree : res) {
+            tree.exposed = this.exposed;
+            if (this.pool != null)
+                tree.pool = new IAVLNode[this.pool.length];
+            if (this.feed != null) {
+                Change split = this.feed.latest();
+                tree.feed = new ChangeFeed(this.feed.capacity(), split.getSeq());
+                tree.feed.append(split.getKind(), split.getKey(), null, tree == smallerTree ? -1 : 1);
+            }
+            tree.trace = this.trace;
+            if (this.pending != null)
+                tree.setRelaxedBalance(this.maxFixups);
+        }
+        return res;
+    }
+
+    /**
+     * public AVLTree[] partition(int k)
+     * <p>
+     * cuts the tree into k trees of near-equal size (they differ by at most one item),
+     * ordered by key: keys(res[j]) < keys(res[j + 1]). pieces are empty if k > size().
+     * every piece is cut off the front with splitAt, so like split this hands the nodes over to new
+     * trees (even for k == 1). the pieces can be put back together with join.
+     * precondition: k >= 1 (otherwise an IllegalArgumentException is thrown)
+     * postcondition: none
+     * complexity: O(k*logn)
+     */
+    public AVLTree[] partition(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be positive: " + k);
+        AVLTree[] res = new AVLTree[k];
+        int pieceSize = this.size / k;
+        int larger = this.size % k; // the first pieces take one more item each
+        AVLTree rest = this;
+        for (int j = 0; j < k; j++) {
+            AVLTree[] parts = rest.splitAt(j < larger ? pieceSize + 1 : pieceSize);
+            res[j] = parts[0];
+            rest = parts[1];
+        }
         return res;
     }
 
 
 
     /**
-     * Gets the tree's maximum and minimum - excluding xNode,
-     * meaning that if this.min == xNode || this.max == xNode then we will get its
-     * successor or predecessor accordingly
-     * return IAVLNode[] where the first is the minimum and the latter is the maximum
+     * private void resetMinAndMax()
+     * sets this.min and this.max to the leftmost and rightmost nodes of the tree.
+     * precondition: None.
+     * postcondition: None.
+     * complexity: O(logn)
+     */
+    private void resetMinAndMax() {
+        if (this.size == 0) {
+            this.min = null;
+            this.max = null;
+            return;
+        }
+        IAVLNode curr = this.root;
+        while (curr.getLeft().isRealNode()) {
+            curr = curr.getLeft();
+        }
+        this.min = curr;
+        curr = this.root;
+        while (curr.getRight().isRealNode()) {
+            curr = curr.getRight();
+        }
+        this.max = curr;
+    }
+
+    /**
+     * private static void resetToLeaf(IAVLNode node)
+     * detaches node from its tree, turning it into a leaf with virtual children.
+     * precondition: node.isRealNode()
+     * postcondition: None.
      * complexity: O(1)
      */
-    private IAVLNode[] getMinAndMaxForSplit(IAVLNode xNode) {
-        IAVLNode maxOfBigger;
-        IAVLNode minOfSmaller;
-        if (xNode != this.max)
-            maxOfBigger = this.max;
-        else
-            maxOfBigger = predecessor(this.max);
-        if (xNode != this.min)
-            minOfSmaller = this.min;
-        else
-            minOfSmaller = successor(this.min);
-        return new IAVLNode[]{minOfSmaller, maxOfBigger};
+    private static void resetToLeaf(IAVLNode node) {
+        node.setLeft(AVLNode.virNode);
+        node.setRight(AVLNode.virNode);
+        node.setParent(null);
+        node.setHeight(0);
+        node.resetSize();
     }
 
     /**
@@ -722,7 +2029,7 @@ public class AVLTree {
      * complexity: O(1)
      */
     private AVLTree seperateSubTree(IAVLNode node) {
-        AVLTree res = new AVLTree();
+        AVLTree res = emptyLike();
         res.root = node;
         node.setParent(null);
         res.size = node.getSize();
@@ -736,15 +2043,32 @@ public class AVLTree {
      * joins t and x with the tree.
      * Returns the complexity of the operation (|tree.rank - t.rank| + 1).
      * precondition: keys(x,t) < keys() or keys(x,t) > keys(). t/tree might be empty (rank = -1).
+     * t must have been created with the same aggregator as the tree (x is copied into an aggregate node if needed),
+     * and with the same balance policy.
      * postcondition: none
-     * complexity: O(logn)
+     * complexity: O(logn), plus O(t.size()) while a change feed is enabled
      */
     public int join(IAVLNode x, AVLTree t) {
+        rebalance();
+        t.rebalance();
+        this.exposed |= t.exposed; // t's handed out nodes join this tree
+        if (this.feed != null) {
+            // recorded as the inserts of the items joining, so replicas need not hold t
+            this.feed.append(Change.Kind.INSERT, x.getKey(), x.getValue());
+            for (IAVLNode node = t.min; node != null; node = t.nextNode(node)) {
+                this.feed.append(Change.Kind.INSERT, node.getKey(), node.getValue());
+            }
+        }
+        if (this.trace != null)
+            this.trace.join(this, x.getKey(), t);
         int complexity = Math.abs(getTreeRank() - t.getTreeRank()) + 1;
+        if (this.aggregator != null && !(x instanceof AggregateNode))
+            x = newNode(x.getKey(), x.getValue());
         // dealing with a special case - atleast one of the trees is empty.
         if (t.empty() || this.empty()) {
             AVLTree notEmptyTree = getNotEmptyTree(t, this);
-            notEmptyTree.insert(x.getKey(), x.getValue());
+            resetToLeaf(x);
+            notEmptyTree.insert(x, x.getKey(), x.getValue());
             setTreeAs(notEmptyTree);
             return complexity;
         }
@@ -783,11 +2107,11 @@ public class AVLTree {
      */
     private static void joinLowerDeeper(IAVLNode x, AVLTree lower, AVLTree higher) {
         int higherRank = higher.getTreeRank();
-        IAVLNode tempNode = lower.getRoot();
+        IAVLNode tempNode = lower.root;
         while (tempNode.getHeight() > higherRank && tempNode.getRight().isRealNode()) {
             tempNode = tempNode.getRight();
         }
-        joinNodeInPlace(x, higher.getRoot(), tempNode, Math.max(tempNode.getHeight(), higherRank) + +1, tempNode.getParent(), true);
+        joinNodeInPlace(x, higher.root, tempNode, Math.max(tempNode.getHeight(), higherRank) + +1, tempNode.getParent(), true);
         lower.size = lower.size + higher.size + 1;
         lower.rebalanceFromNode(x);
     }
@@ -801,10 +2125,10 @@ public class AVLTree {
      * complexity: O(1)
      */
     private static void joinEqualInDepth(IAVLNode x, AVLTree lower, AVLTree higher) {
-        joinNodeInPlace(x, higher.getRoot(), lower.getRoot(), Math.max(higher.getTreeRank(), lower.getTreeRank()) + 1, null, true);
+        joinNodeInPlace(x, higher.root, lower.root, Math.max(higher.getTreeRank(), lower.getTreeRank()) + 1, null, true);
         lower.size = lower.size + higher.size + 1;
         lower.root = x;
-        x.resetSize();
+        lower.resetNode(x);
     }
 
     /**
@@ -818,11 +2142,11 @@ public class AVLTree {
      */
     private static void joinHigherDeeper(IAVLNode x, AVLTree lower, AVLTree higher) {
         int lowerRank = lower.getTreeRank();
-        IAVLNode tempNode = higher.getRoot();
+        IAVLNode tempNode = higher.root;
         while (tempNode.getHeight() > lowerRank && tempNode.getLeft().isRealNode()) {
             tempNode = tempNode.getLeft();
         }
-        joinNodeInPlace(x, tempNode, lower.getRoot(), Math.max(tempNode.getHeight(), lowerRank) + 1, tempNode.getParent(), false);
+        joinNodeInPlace(x, tempNode, lower.root, Math.max(tempNode.getHeight(), lowerRank) + 1, tempNode.getParent(), false);
         higher.size = lower.size + higher.size + 1;
         higher.rebalanceFromNode(x);
     }
@@ -838,7 +2162,7 @@ public class AVLTree {
      */
     private int rebalanceFromNode(IAVLNode node) {
         int count = 0;
-        node.resetSize();
+        resetNode(node);
         while (node.getParent() != null) {
             node = node.getParent();
             if (isFixNeeded(node)) {
@@ -849,7 +2173,7 @@ public class AVLTree {
                     node = node.getParent();
                 }
             } else {
-                node.resetSize();
+                resetNode(node);
             }
         }
         return count;
@@ -1071,6 +2395,4914 @@ public class AVLTree {
         }
     }
 
+    /**
+     * public static class ShardedAVLTree
+     * <p>
+     * A concurrent front end that partitions the key space into AVLTree shards,
+     * each guarded by its own lock.
+     * shard i holds the keys k with bounds[i - 1] <= k < bounds[i], routing is a binary search
+     * over an immutable boundary array that is replaced (never modified) whenever the shards change.
+     * shards that grow too large or too hot are split at their median using split(int),
+     * cold neighbours are merged back using join(IAVLNode, AVLTree).
+     */
+    public static class ShardedAVLTree {
+        private static final int DEFAULT_MAX_SHARD_SIZE = 1 << 16;
+        private static final int DEFAULT_MIN_SHARD_SIZE = 1 << 12;
+        private static final int DEFAULT_HOT_OPS = 1 << 16;
+
+        private final int maxShardSize;
+        private final int minShardSize;
+        private final int hotOps;
+        // held for reading by every operation, and for writing only while shards are split or merged
+        private final ReentrantReadWriteLock layoutLock = new ReentrantReadWriteLock();
+        private volatile Layout layout;
+
+        public ShardedAVLTree() {
+            this(new int[0], DEFAULT_MAX_SHARD_SIZE, DEFAULT_MIN_SHARD_SIZE, DEFAULT_HOT_OPS);
+        }
+
+        /**
+         * @param bounds       - initial sorted, distinct shard boundaries (bounds.length + 1 shards)
+         * @param maxShardSize - a shard larger than this is split at its median
+         * @param minShardSize - neighbours whose combined size is at most this are merged when cold
+         * @param hotOps       - a shard that saw this many mutations since the last maintenance is hot
+         */
+        public ShardedAVLTree(int[] bounds, int maxShardSize, int minShardSize, int hotOps) {
+            if (minShardSize < 1 || maxShardSize < 2 * minShardSize || hotOps < 1)
+                throw new IllegalArgumentException("illegal shard thresholds");
+            for (int i = 1; i < bounds.length; i++) {
+                if (bounds[i - 1] >= bounds[i])
+                    throw new IllegalArgumentException("bounds must be sorted and distinct");
+            }
+            Shard[] shards = new Shard[bounds.length + 1];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new Shard(new AVLTree());
+            }
+            this.maxShardSize = maxShardSize;
+            this.minShardSize = minShardSize;
+            this.hotOps = hotOps;
+            this.layout = new Layout(bounds.clone(), shards);
+        }
+
+        /**
+         * public String search(int k)
+         * <p>
+         * returns the info of an item with key k if it exists in the tree
+         * otherwise, returns null
+         * complexity: O(log(shards) + logn)
+         */
+        public String search(int k) {
+            layoutLock.readLock().lock();
+            try {
+                Shard shard = layout.route(k);
+                shard.lock.lock();
+                try {
+                    return shard.tree.search(k);
+                } finally {
+                    shard.lock.unlock();
+                }
+            } finally {
+                layoutLock.readLock().unlock();
+            }
+        }
+
+        /**
+         * public int insert(int k, String i)
+         * <p>
+         * inserts an item with key k and info i into its shard.
+         * returns the shard's rebalancing count as AVLTree.insert does, or -1 if k already exists.
+         * complexity: O(log(shards) + logn), plus an occasional O(shards * logn) maintenance pass
+         */
+        public int insert(int k, String i) {
+            boolean maintain;
+            int res;
+            layoutLock.readLock().lock();
+            try {
+                Shard shard = layout.route(k);
+                shard.lock.lock();
+                try {
+                    res = shard.tree.insert(k, i);
+                    maintain = res != -1 && shard.recordMutation(this);
+                } finally {
+                    shard.lock.unlock();
+                }
+            } finally {
+                layoutLock.readLock().unlock();
+            }
+            if (maintain)
+                rebalanceShards();
+            return res;
+        }
+
+        /**
+         * public int delete(int k)
+         * <p>
+         * deletes the item with key k from its shard, if it is there.
+         * returns the shard's rebalancing count as AVLTree.delete does, or -1 if k was not found.
+         * complexity: O(log(shards) + logn), plus an occasional O(shards * logn) maintenance pass
+         */
+        public int delete(int k) {
+            boolean maintain;
+            int res;
+            layoutLock.readLock().lock();
+            try {
+                Layout current = layout;
+                Shard shard = current.route(k);
+                shard.lock.lock();
+                try {
+                    res = shard.tree.delete(k);
+                    maintain = res != -1 && (shard.recordMutation(this)
+                            || (current.shards.length > 1 && shard.tree.size() == minShardSize / 2 - 1));
+                } finally {
+                    shard.lock.unlock();
+                }
+            } finally {
+                layoutLock.readLock().unlock();
+            }
+            if (maintain)
+                rebalanceShards();
+            return res;
+        }
+
+        /**
+         * public int size()
+         * <p>
+         * Returns the number of items in all shards, as of a single point in time
+         * (all shards are locked together while counting).
+         * complexity: O(shards)
+         */
+        public int size() {
+            layoutLock.readLock().lock();
+            try {
+                Shard[] shards = layout.shards;
+                lockAll(shards, 0, shards.length - 1);
+                try {
+                    int sum = 0;
+                    for (Shard shard : shards) {
+                        sum += shard.tree.size();
+                    }
+                    return sum;
+                } finally {
+                    unlockAll(shards, 0, shards.length - 1);
+                }
+            } finally {
+                layoutLock.readLock().unlock();
+            }
+        }
+
+        /**
+         * public int[] keysInRange(int lo, int hi)
+         * <p>
+         * Returns a sorted array of all keys k with lo <= k <= hi.
+         * every shard overlapping the range is locked (in ascending order) for the whole scan,
+         * so the result reflects a single point in time.
+         * complexity: O(log(shards) + shards in range * logn + number of keys returned)
+         */
+        public int[] keysInRange(int lo, int hi) {
+            List<IAVLNode> nodes = nodesInRange(lo, hi);
+            int[] arr = new int[nodes.size()];
+            for (int i = 0; i < arr.length; i++) {
+                arr[i] = nodes.get(i).getKey();
+            }
+            return arr;
+        }
+
+        /**
+         * public String[] infoInRange(int lo, int hi)
+         * <p>
+         * Returns the info of all items with lo <= key <= hi, sorted by their respective keys.
+         * consistent in the same way as keysInRange.
+         * complexity: O(log(shards) + shards in range * logn + number of items returned)
+         */
+        public String[] infoInRange(int lo, int hi) {
+            List<IAVLNode> nodes = nodesInRange(lo, hi);
+            String[] arr = new String[nodes.size()];
+            for (int i = 0; i < arr.length; i++) {
+                arr[i] = nodes.get(i).getValue();
+            }
+            return arr;
+        }
+
+        /**
+         * public int shardCount()
+         * <p>
+         * Returns the current number of shards.
+         * complexity: O(1)
+         */
+        public int shardCount() {
+            return layout.shards.length;
+        }
+
+        /**
+         * public void rebalanceShards()
+         * <p>
+         * Splits every shard that is too large or hot at its median key, and merges
+         * neighbouring cold shards whose combined size is at most minShardSize.
+         * blocks all other operations while it runs, and resets the hotness counters.
+         * complexity: O(shards * logn)
+         */
+        public void rebalanceShards() {
+            layoutLock.writeLock().lock();
+            try {
+                Layout current = layout;
+                List<Integer> bounds = new ArrayList<>();
+                List<Shard> shards = new ArrayList<>();
+                for (int i = 0; i < current.shards.length; i++) {
+                    if (i > 0)
+                        bounds.add(current.bounds[i - 1]);
+                    splitInto(current.shards[i], bounds, shards);
+                }
+                for (int i = shards.size() - 2; i >= 0; i--) {
+                    Shard left = shards.get(i);
+                    Shard right = shards.get(i + 1);
+                    if (left.tree.size() + right.tree.size() <= minShardSize && left.ops + right.ops < hotOps) {
+                        merge(left.tree, right.tree);
+                        left.ops += right.ops;
+                        shards.remove(i + 1);
+                        bounds.remove(i);
+                    }
+                }
+                int[] newBounds = new int[bounds.size()];
+                for (int i = 0; i < newBounds.length; i++) {
+                    newBounds[i] = bounds.get(i);
+                }
+                for (Shard shard : shards) {
+                    shard.ops = 0;
+                }
+                layout = new Layout(newBounds, shards.toArray(new Shard[0]));
+            } finally {
+                layoutLock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * splits shard recursively at its median until its pieces are neither too large nor hot,
+         * appending the pieces to shards and the boundaries between them to bounds.
+         * precondition: the layout write lock is held
+         * complexity: O(pieces * logn)
+         */
+        private void splitInto(Shard shard, List<Integer> bounds, List<Shard> shards) {
+            int size = shard.tree.size();
+            if (size <= maxShardSize && (shard.ops < hotOps || size < 2 * minShardSize)) {
+                shards.add(shard);
+                return;
+            }
+            AVLTree[] parts = shard.tree.splitAt(size / 2);
+            int medianKey = parts[1].min.getKey();
+            // the mutations are shared evenly, so a hot shard's halves are only split again while still large
+            int halfOps = shard.ops / 2;
+            splitInto(new Shard(parts[0], halfOps), bounds, shards);
+            bounds.add(medianKey);
+            splitInto(new Shard(parts[1], halfOps), bounds, shards);
+        }
+
+        /**
+         * merges right into left, using right's minimum as the join node.
+         * precondition: keys(left) < keys(right)
+         * complexity: O(logn)
+         */
+        private static void merge(AVLTree left, AVLTree right) {
+            if (right.empty())
+                return;
+            if (left.empty()) {
+                left.setTreeAs(right);
+                return;
+            }
+            IAVLNode rightMin = right.select(0);
+            int key = rightMin.getKey();
+            String value = rightMin.getValue();
+            right.delete(key);
+            left.join(new AVLNode(key, value), right);
+        }
+
+        /**
+         * collects the nodes with lo <= key <= hi from all shards overlapping the range, in order.
+         * complexity: O(log(shards) + shards in range * logn + number of nodes returned)
+         */
+        private List<IAVLNode> nodesInRange(int lo, int hi) {
+            List<IAVLNode> res = new ArrayList<>();
+            if (lo > hi)
+                return res;
+            layoutLock.readLock().lock();
+            try {
+                Layout current = layout;
+                int first = current.indexOf(lo);
+                int last = current.indexOf(hi);
+                lockAll(current.shards, first, last);
+                try {
+                    for (int i = first; i <= last; i++) {
+                        AVLTree tree = current.shards[i].tree;
+                        if (!tree.empty())
+                            collectRange(tree.getRoot(), lo, hi, res);
+                    }
+                } finally {
+                    unlockAll(current.shards, first, last);
+                }
+            } finally {
+                layoutLock.readLock().unlock();
+            }
+            return res;
+        }
+
+        /**
+         * in-order collection of the nodes under node with lo <= key <= hi, skipping subtrees out of range.
+         * complexity: O(logn + number of nodes collected)
+         */
+        private static void collectRange(IAVLNode node, int lo, int hi, List<IAVLNode> res) {
+            if (!node.isRealNode())
+                return;
+            if (node.getKey() > lo)
+                collectRange(node.getLeft(), lo, hi, res);
+            if (node.getKey() >= lo && node.getKey() <= hi)
+                res.add(node);
+            if (node.getKey() < hi)
+                collectRange(node.getRight(), lo, hi, res);
+        }
+
+        /**
+         * locks shards[first..last] in ascending order - every multi-shard lock goes in this order,
+         * so concurrent scans cannot deadlock.
+         * complexity: O(last - first)
+         */
+        private static void lockAll(Shard[] shards, int first, int last) {
+            for (int i = first; i <= last; i++) {
+                shards[i].lock.lock();
+            }
+        }
+
+        /**
+         * unlocks shards[first..last].
+         * complexity: O(last - first)
+         */
+        private static void unlockAll(Shard[] shards, int first, int last) {
+            for (int i = last; i >= first; i--) {
+                shards[i].lock.unlock();
+            }
+        }
+
+        /**
+         * An immutable pairing of the boundary array and the shards it routes to.
+         */
+        private static final class Layout {
+            private final int[] bounds;
+            private final Shard[] shards;
+
+            private Layout(int[] bounds, Shard[] shards) {
+                this.bounds = bounds;
+                this.shards = shards;
+            }
+
+            /**
+             * returns the index of the shard responsible for key k.
+             * complexity: O(log(shards))
+             */
+            private int indexOf(int k) {
+                int pos = Arrays.binarySearch(bounds, k);
+                return pos >= 0 ? pos + 1 : -pos - 1;
+            }
+
+            private Shard route(int k) {
+                return shards[indexOf(k)];
+            }
+        }
+
+        /**
+         * A single shard: its tree, its lock, and the mutations it saw since the last maintenance.
+         */
+        private static final class Shard {
+            private final AVLTree tree;
+            private final ReentrantLock lock = new ReentrantLock();
+            private int ops; // guarded by lock, or by the layout write lock
+
+            private Shard(AVLTree tree) {
+                this(tree, 0);
+            }
+
+            private Shard(AVLTree tree, int ops) {
+                this.tree = tree;
+                this.ops = ops;
+            }
+
+            /**
+             * counts a mutation, returns true if the shard should now be split.
+             * precondition: lock is held
+             * complexity: O(1)
+             */
+            private boolean recordMutation(ShardedAVLTree owner) {
+                this.ops++;
+                return tree.size() > owner.maxShardSize
+                        || (this.ops >= owner.hotOps && tree.size() >= 2 * owner.minShardSize);
+            }
+        }
+    }
+
+    /**
+     * public static class FlatCombiningAVLTree
+     * <p>
+     * A flat-combining front end for a single AVLTree under heavy contention.
+     * every thread publishes its operation in its own slot, and whichever thread wins the combiner lock
+     * applies all pending operations as one batch (sorted by key, so consecutive descents share the
+     * top of the tree), writing each result back to its slot.
+     * the other threads only spin on their own slot instead of queueing on the lock.
+     * a slot only weakly references its thread, and the combiner periodically drops the slots of
+     * threads that have ended, so the slot list tracks the live threads rather than every thread ever seen.
+     */
+    public static class FlatCombiningAVLTree {
+        private static final int NONE = 0;
+        private static final int SEARCH = 1;
+        private static final int INSERT = 2;
+        private static final int DELETE = 3;
+        private static final int SIZE = 4;
+        private static final int SPINS_BEFORE_YIELD = 64;
+        private static final int PRUNE_PERIOD = 1024; // combine passes between scans for dead threads' slots
+
+        private final AVLTree tree = new AVLTree();
+        private final ReentrantLock combinerLock = new ReentrantLock();
+        private final List<Slot> slots = new CopyOnWriteArrayList<>();
+        private final ThreadLocal<Slot> mySlot = new ThreadLocal<Slot>() {
+            @Override
+            protected Slot initialValue() {
+                Slot slot = new Slot(Thread.currentThread());
+                slots.add(slot);
+                return slot;
+            }
+        };
+        private Slot[] batch = new Slot[16]; // only touched by the combiner
+        private int passes; // only touched by the combiner
+
+        /**
+         * public String search(int k)
+         * <p>
+         * returns the info of an item with key k if it exists in the tree
+         * otherwise, returns null
+         * complexity: O(logn) amortized over the combined batch
+         */
+        public String search(int k) {
+            return submit(SEARCH, k, null).valueResult;
+        }
+
+        /**
+         * public int insert(int k, String i)
+         * <p>
+         * inserts an item with key k and info i, returns the result of AVLTree.insert.
+         * complexity: O(logn) amortized over the combined batch
+         */
+        public int insert(int k, String i) {
+            return submit(INSERT, k, i).intResult;
+        }
+
+        /**
+         * public int delete(int k)
+         * <p>
+         * deletes the item with key k, returns the result of AVLTree.delete.
+         * complexity: O(logn) amortized over the combined batch
+         */
+        public int delete(int k) {
+            return submit(DELETE, k, null).intResult;
+        }
+
+        /**
+         * public int size()
+         * <p>
+         * Returns the number of nodes in the tree.
+         * complexity: O(1) amortized over the combined batch
+         */
+        public int size() {
+            return submit(SIZE, 0, null).intResult;
+        }
+
+        /**
+         * publishes the operation in the calling thread's slot and waits until some combiner
+         * (possibly this thread) has applied it.
+         * returns the slot, holding the results.
+         */
+        private Slot submit(int op, int key, String value) {
+            Slot slot = mySlot.get();
+            slot.key = key;
+            slot.value = value;
+            slot.op = op; // volatile write - publishes key and value to the combiner
+            int spins = 0;
+            while (slot.op != NONE) {
+                if (combinerLock.tryLock()) {
+                    try {
+                        combine();
+                    } finally {
+                        combinerLock.unlock();
+                    }
+                } else if (++spins % SPINS_BEFORE_YIELD == 0) {
+                    Thread.yield();
+                }
+            }
+            return slot;
+        }
+
+        /**
+         * applies every pending operation in key order and hands the results back.
+         * precondition: combinerLock is held
+         * complexity: O(threads + b*logb + b*logn) for a batch of b pending operations,
+         * where threads counts the live threads that have used this tree
+         */
+        private void combine() {
+            if (++this.passes % PRUNE_PERIOD == 0)
+                pruneSlots();
+            int count = 0;
+            for (Slot slot : slots) {
+                if (slot.op != NONE) {
+                    if (count == batch.length)
+                        batch = Arrays.copyOf(batch, 2 * count);
+                    batch[count++] = slot;
+                }
+            }
+            // each thread has at most one pending operation, so reordering across keys is safe
+            Arrays.sort(batch, 0, count, Slot.BY_KEY);
+            for (int i = 0; i < count; i++) {
+                Slot slot = batch[i];
+                switch (slot.op) {
+                    case SEARCH:
+                        slot.valueResult = tree.search(slot.key);
+                        break;
+                    case INSERT:
+                        slot.intResult = tree.insert(slot.key, slot.value);
+                        break;
+                    case DELETE:
+                        slot.intResult = tree.delete(slot.key);
+                        break;
+                    default:
+                        slot.intResult = tree.size();
+                        break;
+                }
+                slot.value = null;
+                batch[i] = null;
+                slot.op = NONE; // volatile write - publishes the results to the waiting thread
+            }
+        }
+
+        /**
+         * drops the slots whose thread has ended.
+         * a dead thread has no pending operation, so its slot can go without losing work.
+         * precondition: combinerLock is held
+         * complexity: O(threads)
+         */
+        private void pruneSlots() {
+            List<Slot> dead = null;
+            for (Slot slot : slots) {
+                Thread owner = slot.owner.get();
+                if (owner == null || !owner.isAlive()) {
+                    if (dead == null)
+                        dead = new ArrayList<>();
+                    dead.add(slot);
+                }
+            }
+            if (dead != null)
+                slots.removeAll(dead);
+        }
+
+        /**
+         * A per-thread publication slot: the pending operation and its results.
+         * the owner is held weakly so that the slot list never keeps an ended thread reachable.
+         */
+        private static final class Slot {
+            private static final Comparator<Slot> BY_KEY = new Comparator<Slot>() {
+                @Override
+                public int compare(Slot a, Slot b) {
+                    return Integer.compare(a.key, b.key);
+                }
+            };
+
+            private final WeakReference<Thread> owner;
+            private volatile int op = NONE;
+            private int key;
+            private String value;
+            private int intResult;
+            private String valueResult;
+
+            private Slot(Thread owner) {
+                this.owner = new WeakReference<>(owner);
+            }
+        }
+    }
+
+    /**
+     * public static class FrozenAVLTree
+     * <p>
+     * An immutable snapshot of an AVLTree (see AVLTree.freeze()).
+     * the keys are stored in a contiguous int[] in Eytzinger (BFS) order - the children of slot i are
+     * slots 2i and 2i+1 (slot 0 is unused) - so the first levels of every search share a few cache lines
+     * and each level's candidates sit next to each other in memory.
+     * info and in-order ranks are held in arrays parallel to the keys.
+     * descents pick the next slot arithmetically instead of branching on the comparison.
+     */
+    public static class FrozenAVLTree {
+        private final int[] keys;
+        private final String[] values;
+        private final int[] ranks;
+        private final int size;
+
+        /**
+         * precondition: sortedKeys is sorted and distinct, sortedValues[i] is the info of sortedKeys[i]
+         * complexity: O(n)
+         */
+        private FrozenAVLTree(int[] sortedKeys, String[] sortedValues) {
+            this.size = sortedKeys.length;
+            this.keys = new int[this.size + 1];
+            this.values = new String[this.size + 1];
+            this.ranks = new int[this.size + 1];
+            layout(sortedKeys, sortedValues, 1, new int[]{0});
+        }
+
+        /**
+         * fills slot i and its subtree with the next items of the in-order sequence.
+         * complexity: O(n)
+         */
+        private void layout(int[] sortedKeys, String[] sortedValues, int i, int[] index) {
+            if (i > this.size)
+                return;
+            layout(sortedKeys, sortedValues, 2 * i, index);
+            this.keys[i] = sortedKeys[index[0]];
+            this.values[i] = sortedValues[index[0]];
+            this.ranks[i] = index[0];
+            index[0] += 1;
+            layout(sortedKeys, sortedValues, 2 * i + 1, index);
+        }
+
+        /**
+         * public int size()
+         * <p>
+         * Returns the number of items in the snapshot.
+         * complexity: O(1)
+         */
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * public boolean empty()
+         * <p>
+         * returns true if and only if the snapshot is empty
+         * complexity: O(1)
+         */
+        public boolean empty() {
+            return this.size == 0;
+        }
+
+        /**
+         * public String search(int k)
+         * <p>
+         * returns the info of an item with key k if it exists in the snapshot
+         * otherwise, returns null
+         * complexity: O(logn)
+         */
+        public String search(int k) {
+            int i = ceilingSlot(k);
+            return i != 0 && this.keys[i] == k ? this.values[i] : null;
+        }
+
+        /**
+         * public String ceiling(int k)
+         * <p>
+         * returns the info of the item with the smallest key >= k, or null if there is none
+         * complexity: O(logn)
+         */
+        public String ceiling(int k) {
+            return this.values[ceilingSlot(k)];
+        }
+
+        /**
+         * public String floor(int k)
+         * <p>
+         * returns the info of the item with the largest key <= k, or null if there is none
+         * complexity: O(logn)
+         */
+        public String floor(int k) {
+            return this.values[floorSlot(k)];
+        }
+
+        /**
+         * public int rank(int k)
+         * <p>
+         * returns the number of keys in the snapshot that are smaller than k
+         * complexity: O(logn)
+         */
+        public int rank(int k) {
+            int i = ceilingSlot(k);
+            return i != 0 ? this.ranks[i] : this.size;
+        }
+
+        /**
+         * returns the slot of the smallest key >= k, or 0 if there is none.
+         * the descent always runs to the bottom; the answer is the last slot where it went left,
+         * which is recovered by dropping the trailing right-turns (1 bits) and that left-turn from i.
+         * complexity: O(logn)
+         */
+        private int ceilingSlot(int k) {
+            int i = 1;
+            while (i <= this.size) {
+                i = 2 * i + (this.keys[i] < k ? 1 : 0);
+            }
+            return i >>> (Integer.numberOfTrailingZeros(~i) + 1);
+        }
+
+        /**
+         * returns the slot of the largest key <= k, or 0 if there is none.
+         * the answer is the last slot where the descent went right, which is recovered by
+         * dropping the trailing left-turns (0 bits) and that right-turn from i.
+         * complexity: O(logn)
+         */
+        private int floorSlot(int k) {
+            int i = 1;
+            while (i <= this.size) {
+                i = 2 * i + (this.keys[i] <= k ? 1 : 0);
+            }
+            return i >>> (Integer.numberOfTrailingZeros(i) + 1);
+        }
+    }
+
+    /**
+     * public static class BucketedAVLTree
+     * <p>
+     * A hybrid layout of the AVL tree: the tree indexes leaf buckets of up to capacity sorted keys
+     * and infos held in primitive arrays, instead of one node per item.
+     * every index node is a bucket keyed by its smallest key. a full bucket is split in half and the
+     * upper half inserted as a new index node, an underfull bucket is merged into a neighbour, and the
+     * usual AVL rotations keep the bucket index balanced.
+     * every bucket also keeps the number of items in its subtree (its weight), which is kept up to date
+     * by resetSize() on every rotation, promotion and join, so order statistics work through bucket sizes.
+     * keys have the same restriction as in AVLTree (-1 marks virtual nodes).
+     */
+    public static class BucketedAVLTree {
+        private static final int DEFAULT_BUCKET_CAPACITY = 64;
+
+        private final int capacity;
+        private AVLTree index;
+        private int size;
+
+        public BucketedAVLTree() {
+            this(DEFAULT_BUCKET_CAPACITY);
+        }
+
+        /**
+         * @param capacity - the maximal number of items in a bucket (32-128 is the useful range)
+         */
+        public BucketedAVLTree(int capacity) {
+            this(capacity, new AVLTree());
+            if (capacity < 4)
+                throw new IllegalArgumentException("bucket capacity must be at least 4");
+        }
+
+        private BucketedAVLTree(int capacity, AVLTree index) {
+            this.capacity = capacity;
+            this.index = index;
+            this.size = weightOf(index.getRoot());
+        }
+
+        /**
+         * public boolean empty()
+         * <p>
+         * returns true if and only if the tree is empty
+         * complexity: O(1)
+         */
+        public boolean empty() {
+            return this.size == 0;
+        }
+
+        /**
+         * public int size()
+         * <p>
+         * Returns the number of items in the tree.
+         * complexity: O(1)
+         */
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * public String search(int k)
+         * <p>
+         * returns the info of an item with key k if it exists in the tree
+         * otherwise, returns null
+         * complexity: O(log(n / capacity) + log(capacity))
+         */
+        public String search(int k) {
+            Bucket bucket = floorBucket(k);
+            if (bucket == null)
+                return null;
+            int j = bucket.indexOf(k);
+            return j >= 0 ? bucket.vals[j] : null;
+        }
+
+        /**
+         * public int insert(int k, String i)
+         * <p>
+         * inserts an item with key k and info i to the tree.
+         * returns the number of rebalancing operations done on the bucket index (a bucket split
+         * inserts an index node), or -1 if an item with key k already exists in the tree.
+         * complexity: O(log(n / capacity) + capacity)
+         */
+        public int insert(int k, String i) {
+            if (this.index.empty()) {
+                Bucket bucket = new Bucket(this.capacity);
+                bucket.insertAt(0, k, i);
+                bucket.resetKey();
+                bucket.resetSize();
+                this.index.insert(bucket, k, null);
+                this.size++;
+                return 0;
+            }
+            Bucket bucket = floorBucket(k);
+            if (bucket == null) // k is a new minimum, it goes to the first bucket which is re-keyed below
+                bucket = (Bucket) this.index.min;
+            int pos = bucket.indexOf(k);
+            if (pos >= 0)
+                return -1;
+            pos = -pos - 1;
+            int count = 0;
+            if (bucket.count == this.capacity) {
+                Bucket upper = bucket.splitUpper();
+                count = this.index.insert(upper, upper.getKey(), null);
+                if (pos > bucket.count) {
+                    pos -= bucket.count;
+                    bucket = upper;
+                }
+            }
+            bucket.insertAt(pos, k, i);
+            this.size++;
+            // lowering the key of a bucket to its new minimum keeps the index ordered
+            bucket.resetKey();
+            updateWeights(bucket);
+            return count;
+        }
+
+        /**
+         * public int delete(int k)
+         * <p>
+         * deletes an item with key k from the tree, if it is there.
+         * returns the number of rebalancing operations done on the bucket index (an emptied or merged
+         * bucket is deleted from it), or -1 if an item with key k was not found in the tree.
+         * complexity: O(log(n / capacity) + capacity)
+         */
+        public int delete(int k) {
+            Bucket bucket = floorBucket(k);
+            if (bucket == null)
+                return -1;
+            int j = bucket.indexOf(k);
+            if (j < 0)
+                return -1;
+            bucket.removeAt(j);
+            this.size--;
+            if (bucket.count == 0)
+                return this.index.delete(bucket.getKey());
+            // raising the key of a bucket to its new minimum keeps the index ordered
+            bucket.resetKey();
+            updateWeights(bucket);
+            return mergeIfUnderfull(bucket);
+        }
+
+        /**
+         * public String min()
+         * <p>
+         * Returns the info of the item with the smallest key in the tree,
+         * or null if the tree is empty
+         * complexity: O(1)
+         */
+        public String min() {
+            return this.size > 0 ? ((Bucket) this.index.min).vals[0] : null;
+        }
+
+        /**
+         * public String max()
+         * <p>
+         * Returns the info of the item with the largest key in the tree,
+         * or null if the tree is empty
+         * complexity: O(1)
+         */
+        public String max() {
+            if (this.size == 0)
+                return null;
+            Bucket last = (Bucket) this.index.max;
+            return last.vals[last.count - 1];
+        }
+
+        /**
+         * public int[] keysToArray()
+         * <p>
+         * Returns a sorted array which contains all keys in the tree,
+         * or an empty array if the tree is empty.
+         * complexity: O(n)
+         */
+        public int[] keysToArray() {
+            int[] arr = new int[this.size];
+            toArraysRec(this.index.getRoot(), arr, null, new int[]{0});
+            return arr;
+        }
+
+        /**
+         * public String[] infoToArray()
+         * <p>
+         * Returns an array which contains all info in the tree,
+         * sorted by their respective keys,
+         * or an empty array if the tree is empty.
+         * complexity: O(n)
+         */
+        public String[] infoToArray() {
+            String[] arr = new String[this.size];
+            toArraysRec(this.index.getRoot(), null, arr, new int[]{0});
+            return arr;
+        }
+
+        /**
+         * public int rank(int k)
+         * <p>
+         * returns the number of keys in the tree that are smaller than k
+         * complexity: O(log(n / capacity) + log(capacity))
+         */
+        public int rank(int k) {
+            int base = 0;
+            IAVLNode node = this.index.getRoot();
+            while (node != null && node.isRealNode()) {
+                Bucket bucket = (Bucket) node;
+                if (k < bucket.getKey()) {
+                    node = bucket.getLeft();
+                } else if (k > bucket.keys[bucket.count - 1]) {
+                    base += weightOf(bucket.getLeft()) + bucket.count;
+                    node = bucket.getRight();
+                } else {
+                    return base + weightOf(bucket.getLeft()) + lowerBound(bucket.keys, 0, bucket.count, k);
+                }
+            }
+            return base;
+        }
+
+        /**
+         * public int keyAt(int i)
+         * <p>
+         * Returns the i'th smallest key in the tree (0-based).
+         * precondition: 0 <= i < size()
+         * complexity: O(log(n / capacity))
+         */
+        public int keyAt(int i) {
+            int[] offset = new int[1];
+            return bucketAt(i, offset).keys[offset[0]];
+        }
+
+        /**
+         * public String infoAt(int i)
+         * <p>
+         * Returns the info of the item with the i'th smallest key in the tree (0-based).
+         * precondition: 0 <= i < size()
+         * complexity: O(log(n / capacity))
+         */
+        public String infoAt(int i) {
+            int[] offset = new int[1];
+            return bucketAt(i, offset).vals[offset[0]];
+        }
+
+        /**
+         * public BucketedAVLTree[] split(int x)
+         * <p>
+         * splits the tree into 2 trees according to the key x, like AVLTree.split.
+         * the bucket holding x is cut in two, and the bucket index is split with AVLTree.split.
+         * Returns an array [t1, t2] with two trees. keys(t1) < x < keys(t2).
+         * precondition: search(x) != null
+         * complexity: O(log(n / capacity) + capacity)
+         */
+        public BucketedAVLTree[] split(int x) {
+            Bucket bucket = floorBucket(x);
+            int j = bucket.indexOf(x);
+            Bucket upper = null;
+            if (j + 1 < bucket.count) {
+                upper = new Bucket(this.capacity);
+                upper.count = bucket.count - j - 1;
+                System.arraycopy(bucket.keys, j + 1, upper.keys, 0, upper.count);
+                System.arraycopy(bucket.vals, j + 1, upper.vals, 0, upper.count);
+                upper.resetKey();
+            }
+            AVLTree[] parts = this.index.split(bucket.getKey());
+            bucket.truncate(j);
+            if (bucket.count > 0) {
+                resetToLeaf(bucket);
+                parts[0].insert(bucket, bucket.getKey(), null);
+            }
+            if (upper != null) {
+                upper.resetSize();
+                parts[1].insert(upper, upper.getKey(), null);
+            }
+            return new BucketedAVLTree[]{new BucketedAVLTree(this.capacity, parts[0]), new BucketedAVLTree(this.capacity, parts[1])};
+        }
+
+        /**
+         * public int join(int k, String i, BucketedAVLTree t)
+         * <p>
+         * joins t and the item (k, i) with the tree, joining the bucket indexes with AVLTree.join.
+         * Returns the complexity of the index join, as AVLTree.join does.
+         * precondition: keys(k,t) < keys() or keys(k,t) > keys(). t and the tree have the same bucket capacity.
+         * postcondition: t should not be used anymore.
+         * complexity: O(log(n / capacity) + capacity)
+         */
+        public int join(int k, String i, BucketedAVLTree t) {
+            Bucket bucket = new Bucket(this.capacity);
+            bucket.insertAt(0, k, i);
+            bucket.resetKey();
+            int complexity = this.index.join(bucket, t.index);
+            this.size += t.size + 1;
+            // the joined item sits in a bucket of its own - fold it into a neighbour
+            mergeIfUnderfull(bucket);
+            return complexity;
+        }
+
+        /**
+         * merges bucket with its successor or predecessor if it is under a quarter full and the two fit
+         * in one bucket. returns the number of rebalancing operations of the index deletion.
+         * complexity: O(log(n / capacity) + capacity)
+         */
+        private int mergeIfUnderfull(Bucket bucket) {
+            if (bucket.count >= this.capacity / 4)
+                return 0;
+            Bucket next = (Bucket) this.index.successor(bucket);
+            if (next != null && bucket.count + next.count <= this.capacity) {
+                bucket.append(next);
+                int count = this.index.delete(next.getKey());
+                updateWeights(bucket);
+                return count;
+            }
+            Bucket prev = (Bucket) this.index.predecessor(bucket);
+            if (prev != null && prev.count + bucket.count <= this.capacity) {
+                prev.append(bucket);
+                int count = this.index.delete(bucket.getKey());
+                updateWeights(prev);
+                return count;
+            }
+            return 0;
+        }
+
+        /**
+         * returns the bucket with the largest key <= k, that is the only bucket that may hold k,
+         * or null if k is smaller than all keys in the tree.
+         * complexity: O(log(n / capacity))
+         */
+        private Bucket floorBucket(int k) {
+            Bucket res = null;
+            IAVLNode node = this.index.getRoot();
+            while (node != null && node.isRealNode()) {
+                if (node.getKey() <= k) {
+                    res = (Bucket) node;
+                    node = node.getRight();
+                } else {
+                    node = node.getLeft();
+                }
+            }
+            return res;
+        }
+
+        /**
+         * returns the bucket holding the i'th smallest item, and sets offset[0] to its position in the bucket.
+         * precondition: 0 <= i < size()
+         * complexity: O(log(n / capacity))
+         */
+        private Bucket bucketAt(int i, int[] offset) {
+            Bucket bucket = (Bucket) this.index.getRoot();
+            while (true) {
+                int leftWeight = weightOf(bucket.getLeft());
+                if (i < leftWeight) {
+                    bucket = (Bucket) bucket.getLeft();
+                } else if (i < leftWeight + bucket.count) {
+                    offset[0] = i - leftWeight;
+                    return bucket;
+                } else {
+                    i -= leftWeight + bucket.count;
+                    bucket = (Bucket) bucket.getRight();
+                }
+            }
+        }
+
+        /**
+         * refreshes the weights from bucket up to the root, after its item count changed.
+         * complexity: O(log(n / capacity))
+         */
+        private static void updateWeights(IAVLNode bucket) {
+            for (IAVLNode node = bucket; node != null; node = node.getParent()) {
+                node.resetSize();
+            }
+        }
+
+        /**
+         * returns the number of items under node, 0 for virtual or missing nodes.
+         * complexity: O(1)
+         */
+        private static int weightOf(IAVLNode node) {
+            return node != null && node.isRealNode() ? ((Bucket) node).weight : 0;
+        }
+
+        /**
+         * copies the keys (or infos) under node to the array in order.
+         * complexity: O(n)
+         */
+        private static void toArraysRec(IAVLNode node, int[] keys, String[] vals, int[] index) {
+            if (node == null || !node.isRealNode())
+                return;
+            Bucket bucket = (Bucket) node;
+            toArraysRec(bucket.getLeft(), keys, vals, index);
+            if (keys != null)
+                System.arraycopy(bucket.keys, 0, keys, index[0], bucket.count);
+            else
+                System.arraycopy(bucket.vals, 0, vals, index[0], bucket.count);
+            index[0] += bucket.count;
+            toArraysRec(bucket.getRight(), keys, vals, index);
+        }
+
+        /**
+         * A bucket index node: up to capacity sorted items in parallel arrays,
+         * keyed in the index by its smallest key.
+         */
+        private static final class Bucket extends AVLNode {
+            private final int[] keys;
+            private final String[] vals;
+            private int count;
+            private int weight; // items in this bucket's index subtree
+
+            private Bucket(int capacity) {
+                super(0, null);
+                this.keys = new int[capacity];
+                this.vals = new String[capacity];
+            }
+
+            /**
+             * sets the size (index nodes) and the weight (items) of the bucket's subtree.
+             * complexity: O(1)
+             */
+            @Override
+            public void resetSize() {
+                super.resetSize();
+                this.weight = weightOf(getLeft()) + weightOf(getRight()) + this.count;
+            }
+
+            /**
+             * sets the bucket's index key to its smallest key.
+             * precondition: count > 0, and the new key keeps the index ordered
+             * complexity: O(1)
+             */
+            private void resetKey() {
+                super.key = this.keys[0];
+            }
+
+            private int indexOf(int k) {
+                return Arrays.binarySearch(this.keys, 0, this.count, k);
+            }
+
+            private void insertAt(int pos, int k, String i) {
+                System.arraycopy(this.keys, pos, this.keys, pos + 1, this.count - pos);
+                System.arraycopy(this.vals, pos, this.vals, pos + 1, this.count - pos);
+                this.keys[pos] = k;
+                this.vals[pos] = i;
+                this.count++;
+            }
+
+            private void removeAt(int pos) {
+                System.arraycopy(this.keys, pos + 1, this.keys, pos, this.count - pos - 1);
+                System.arraycopy(this.vals, pos + 1, this.vals, pos, this.count - pos - 1);
+                this.count--;
+                this.vals[this.count] = null;
+            }
+
+            /**
+             * drops every item from position newCount on.
+             * complexity: O(capacity)
+             */
+            private void truncate(int newCount) {
+                Arrays.fill(this.vals, newCount, this.count, null);
+                this.count = newCount;
+            }
+
+            /**
+             * appends all items of other to this bucket.
+             * precondition: keys(this) < keys(other) and both fit in one bucket
+             * complexity: O(capacity)
+             */
+            private void append(Bucket other) {
+                System.arraycopy(other.keys, 0, this.keys, this.count, other.count);
+                System.arraycopy(other.vals, 0, this.vals, this.count, other.count);
+                this.count += other.count;
+            }
+
+            /**
+             * moves the upper half of this bucket into a new, detached bucket and returns it.
+             * complexity: O(capacity)
+             */
+            private Bucket splitUpper() {
+                Bucket upper = new Bucket(this.keys.length);
+                int half = this.count / 2;
+                upper.count = this.count - half;
+                System.arraycopy(this.keys, half, upper.keys, 0, upper.count);
+                System.arraycopy(this.vals, half, upper.vals, 0, upper.count);
+                truncate(half);
+                upper.resetKey();
+                upper.resetSize();
+                return upper;
+            }
+        }
+    }
+
+    /**
+     * public static class MemoryStats
+     * <p>
+     * A heap footprint estimate of an AVLTree, see AVLTree.memoryStats().
+     * sizes assume a 64-bit HotSpot JVM with compressed oops (12-byte object headers, 4-byte references,
+     * 8-byte alignment) and that values are not shared between entries. Strings are sized for the running
+     * JVM: a UTF-16 char[] up to Java 8, compact strings (one byte per char when all are Latin-1) since Java 9.
+     */
+    public static class MemoryStats {
+        // header + key, height, size (3 ints) + val, left, right, parent (4 references)
+        private static final long NODE_BYTES = align(12 + 3 * 4 + 4 * 4);
+        // a node plus the subtree aggregate (1 long)
+        private static final long AGGREGATE_NODE_BYTES = align(NODE_BYTES + 8);
+        // header + value reference + hash, plus the coder and hashIsZero bytes since Java 9 (24 bytes either way)
+        private static final long STRING_BYTES = align(12 + 4 + 4 + 1 + 1);
+        // Java 8 reports its specification version as "1.8", later versions as "9", "10", ...
+        private static final boolean COMPACT_STRINGS = !System.getProperty("java.specification.version", "1.8").startsWith("1.");
+        private static final long ARRAY_HEADER_BYTES = 16;
+
+        private final int nodeCount;
+        private final long nodeBytes;
+        private final long valueBytes;
+        private final int height;
+
+        private MemoryStats(int nodeCount, long nodeBytes, long valueBytes, int height) {
+            this.nodeCount = nodeCount;
+            this.nodeBytes = nodeBytes;
+            this.valueBytes = valueBytes;
+            this.height = height;
+        }
+
+        /**
+         * returns the estimated retained size of a String value (the String and its backing array).
+         * complexity: O(length of s)
+         */
+        private static long stringBytes(String s) {
+            if (s == null)
+                return 0;
+            boolean latin1 = COMPACT_STRINGS;
+            for (int i = 0; i < s.length() && latin1; i++) {
+                latin1 = s.charAt(i) <= 0xFF;
+            }
+            return STRING_BYTES + align(ARRAY_HEADER_BYTES + (latin1 ? 1L : 2L) * s.length());
+        }
+
+        private static long align(long bytes) {
+            return (bytes + 7) & ~7L;
+        }
+
+        /**
+         * Returns the number of nodes (entries) in the tree.
+         */
+        public int getNodeCount() {
+            return this.nodeCount;
+        }
+
+        /**
+         * Returns the shallow size of all nodes.
+         */
+        public long getNodeBytes() {
+            return this.nodeBytes;
+        }
+
+        /**
+         * Returns the retained size of all values (estimated from a sample for large trees).
+         */
+        public long getValueBytes() {
+            return this.valueBytes;
+        }
+
+        /**
+         * Returns the retained size of the whole tree, nodes and values.
+         */
+        public long getRetainedBytes() {
+            return this.nodeBytes + this.valueBytes;
+        }
+
+        /**
+         * Returns the retained size per entry, or 0 for an empty tree.
+         */
+        public double getBytesPerEntry() {
+            return this.nodeCount == 0 ? 0 : (double) getRetainedBytes() / this.nodeCount;
+        }
+
+        /**
+         * Returns the maximal depth of a node (number of nodes on the longest root-leaf path).
+         * for a BalancePolicy.WAVL tree this is the root's rank + 1, an upper bound on the depth.
+         */
+        public int getMaxDepth() {
+            return this.height;
+        }
+
+        /**
+         * Returns the smallest possible maximal depth for the same number of nodes, ceil(log2(n + 1)).
+         */
+        public int getIdealDepth() {
+            return 32 - Integer.numberOfLeadingZeros(this.nodeCount);
+        }
+
+        @Override
+        public String toString() {
+            return "MemoryStats{nodes=" + this.nodeCount + ", nodeBytes=" + this.nodeBytes
+                    + ", valueBytes=" + this.valueBytes + ", bytesPerEntry=" + getBytesPerEntry()
+                    + ", maxDepth=" + this.height + ", idealDepth=" + getIdealDepth() + "}";
+        }
+    }
+
+    /**
+     * A fork/join task writing a subtree's items into the output arrays of toArrays, starting at offset.
+     * subtrees smaller than PARALLEL_GRAIN are written sequentially.
+     */
+    @SuppressWarnings("serial") // RecursiveAction is Serializable, the task is never serialized
+    private static final class ToArraysTask extends RecursiveAction {
+        private final IAVLNode node;
+        private final int[] keys;
+        private final String[] infos;
+        private final int offset;
+
+        ToArraysTask(IAVLNode node, int[] keys, String[] infos, int offset) {
+            this.node = node;
+            this.keys = keys;
+            this.infos = infos;
+            this.offset = offset;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.node.getSize() < PARALLEL_GRAIN) {
+                toArraysRec(this.node, this.keys, this.infos, this.offset);
+                return;
+            }
+            int mid = this.offset + this.node.getLeft().getSize();
+            if (this.keys != null)
+                this.keys[mid] = this.node.getKey();
+            if (this.infos != null)
+                this.infos[mid] = this.node.getValue();
+            invokeAll(new ToArraysTask(this.node.getLeft(), this.keys, this.infos, this.offset),
+                    new ToArraysTask(this.node.getRight(), this.keys, this.infos, mid + 1));
+        }
+    }
+
+    /**
+     * A fork/join task building the balanced subtree of fromSorted over [lo, hi); its root is left in node.
+     * ranges smaller than PARALLEL_GRAIN are built sequentially.
+     */
+    @SuppressWarnings("serial") // RecursiveAction is Serializable, the task is never serialized
+    private static final class BuildTask extends RecursiveAction {
+        private final AVLTree tree;
+        private final int[] keys;
+        private final String[] infos;
+        private final int lo;
+        private final int hi;
+        private IAVLNode node;
+
+        BuildTask(AVLTree tree, int[] keys, String[] infos, int lo, int hi) {
+            this.tree = tree;
+            this.keys = keys;
+            this.infos = infos;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.hi - this.lo < PARALLEL_GRAIN) {
+                this.node = this.tree.buildRec(this.keys, this.infos, this.lo, this.hi);
+                return;
+            }
+            int mid = (this.lo + this.hi) >>> 1;
+            BuildTask left = new BuildTask(this.tree, this.keys, this.infos, this.lo, mid);
+            BuildTask right = new BuildTask(this.tree, this.keys, this.infos, mid + 1, this.hi);
+            invokeAll(left, right);
+            this.node = this.tree.buildNode(this.keys, this.infos, mid, left.node, right.node);
+        }
+    }
+
+    /**
+     * public static class Change
+     * <p>
+     * A mutation of a tree, as recorded in its ChangeFeed or returned by diff (where seq is 0):
+     * INSERT key info, DELETE key, REPLACE key info (the item's new info), SPLIT key (the tree was
+     * split at key), SPLIT_AT index (in the key field, the tree was split by position, see splitAt), CLEAR.
+     * a join is recorded as INSERTs. a split record carries a side: 0 in the feed of the tree that was split,
+     * -1 or 1 in the feed of its lower or higher result (see enableChangeFeed).
+     */
+    public static class Change {
+        public enum Kind {
+            INSERT, DELETE, REPLACE, SPLIT, CLEAR, SPLIT_AT
+        }
+
+        private final long seq;
+        private final Kind kind;
+        private final int key;
+        private final String info;
+        private final int side;
+
+        private Change(long seq, Kind kind, int key, String info) {
+            this(seq, kind, key, info, 0);
+        }
+
+        private Change(long seq, Kind kind, int key, String info, int side) {
+            this.seq = seq;
+            this.kind = kind;
+            this.key = key;
+            this.info = info;
+            this.side = side;
+        }
+
+        public long getSeq() {
+            return this.seq;
+        }
+
+        public Kind getKind() {
+            return this.kind;
+        }
+
+        public int getKey() {
+            return this.key;
+        }
+
+        public String getInfo() {
+            return this.info;
+        }
+
+        /**
+         * public int getSide()
+         * <p>
+         * Returns the side of a split record: -1 (keeps the lower result) or 1 (the higher one) in the feed
+         * of a result tree, 0 in the feed of the tree that was split and for every other kind.
+         */
+        public int getSide() {
+            return this.side;
+        }
+
+        @Override
+        public String toString() {
+            return this.seq + " " + this.kind + " " + this.key + (this.info != null ? " " + this.info : "")
+                    + (this.side < 0 ? " low" : this.side > 0 ? " high" : "");
+        }
+    }
+
+    /**
+     * public static class ChangeFeed
+     * <p>
+     * A bounded feed of a tree's mutations, numbered by consecutive sequence numbers and kept in a ring
+     * of the latest capacity changes (see enableChangeFeed).
+     * the tree appends while consumers may read from other threads, so access is synchronized.
+     */
+    public static class ChangeFeed {
+        private final Change[] ring;
+        private final long startSeq; // seq of the first change this feed ever held
+        private long nextSeq; // seq of the next change
+
+        private ChangeFeed(int capacity, long startSeq) {
+            if (capacity <= 0)
+                throw new IllegalArgumentException("capacity must be positive");
+            this.ring = new Change[capacity];
+            this.startSeq = startSeq;
+            this.nextSeq = startSeq;
+        }
+
+        /**
+         * public int capacity()
+         * <p>
+         * Returns the number of latest changes the feed keeps.
+         */
+        public int capacity() {
+            return this.ring.length;
+        }
+
+        /**
+         * public long firstSeq()
+         * <p>
+         * Returns the seq of the oldest change still kept (lastSeq() + 1 if there is none).
+         */
+        public synchronized long firstSeq() {
+            return Math.max(this.startSeq, this.nextSeq - this.ring.length);
+        }
+
+        /**
+         * public long lastSeq()
+         * <p>
+         * Returns the seq of the latest change (firstSeq() - 1 if there is none).
+         */
+        public synchronized long lastSeq() {
+            return this.nextSeq - 1;
+        }
+
+        /**
+         * public List<Change> since(long seq)
+         * <p>
+         * Returns the changes after seq, oldest first - a consumer that applied everything up to seq
+         * passes it and continues from the last returned seq.
+         * throws IllegalStateException if changes after seq were already dropped, the consumer must resync.
+         * complexity: O(returned changes)
+         */
+        public synchronized List<Change> since(long seq) {
+            if (seq + 1 < firstSeq())
+                throw new IllegalStateException("changes after " + seq + " were dropped, oldest kept is " + firstSeq());
+            List<Change> res = new ArrayList<>();
+            for (long s = Math.max(seq + 1, this.startSeq); s < this.nextSeq; s++) {
+                res.add(this.ring[(int) (s % this.ring.length)]);
+            }
+            return res;
+        }
+
+        private void append(Change.Kind kind, int key, String info) {
+            append(kind, key, info, 0);
+        }
+
+        private synchronized void append(Change.Kind kind, int key, String info, int side) {
+            this.ring[(int) (this.nextSeq % this.ring.length)] = new Change(this.nextSeq, kind, key, info, side);
+            this.nextSeq++;
+        }
+
+        /**
+         * returns the latest change.
+         * precondition: the feed holds a change
+         */
+        private synchronized Change latest() {
+            return this.ring[(int) ((this.nextSeq - 1) % this.ring.length)];
+        }
+    }
+
+    /**
+     * public enum BalancePolicy
+     * <p>
+     * The rank rules a tree keeps, see AVLTree(BalancePolicy).
+     * AVL: every node is 1,1 or 1,2 (the rank is the height).
+     * WAVL (weak AVL): every node is 1,1, 1,2 or 2,2 and every leaf is 1,1. inserts rebalance as in AVL
+     * (so an insert-only tree is an AVL tree), while a delete does at most two rotations, with
+     * demotions doing the rest. the height stays below 2logn.
+     */
+    public enum BalancePolicy {
+        AVL,
+        WAVL
+    }
+
+    /**
+     * public interface Aggregator
+     * <p>
+     * A monoid over a projection of the items, maintained per subtree by the nodes of a tree
+     * created with AVLTree(Aggregator) - see aggregate(lo, hi).
+     * combine must be associative with identity as its neutral element, it need not be commutative.
+     */
+    public interface Aggregator {
+        public long identity(); // the aggregate of no items
+
+        public long lift(int key, String info); // the aggregate of a single item
+
+        public long combine(long left, long right); // the aggregate of two adjacent key ranges
+
+        /**
+         * sum of the projection over the range.
+         */
+        public static Aggregator sum(final Projection projection) {
+            return new Aggregator() {
+                public long identity() {
+                    return 0;
+                }
+
+                public long lift(int key, String info) {
+                    return projection.project(key, info);
+                }
+
+                public long combine(long left, long right) {
+                    return left + right;
+                }
+            };
+        }
+
+        /**
+         * minimum of the projection over the range (Long.MAX_VALUE for an empty range).
+         */
+        public static Aggregator min(final Projection projection) {
+            return new Aggregator() {
+                public long identity() {
+                    return Long.MAX_VALUE;
+                }
+
+                public long lift(int key, String info) {
+                    return projection.project(key, info);
+                }
+
+                public long combine(long left, long right) {
+                    return Math.min(left, right);
+                }
+            };
+        }
+
+        /**
+         * maximum of the projection over the range (Long.MIN_VALUE for an empty range).
+         */
+        public static Aggregator max(final Projection projection) {
+            return new Aggregator() {
+                public long identity() {
+                    return Long.MIN_VALUE;
+                }
+
+                public long lift(int key, String info) {
+                    return projection.project(key, info);
+                }
+
+                public long combine(long left, long right) {
+                    return Math.max(left, right);
+                }
+            };
+        }
+
+        /**
+         * number of items in the range.
+         */
+        public static Aggregator count() {
+            return sum(new Projection() {
+                public long project(int key, String info) {
+                    return 1;
+                }
+            });
+        }
+
+        /**
+         * a 64-bit hash of the items in the range, independent of the tree's shape; see AVLTree.diff.
+         */
+        public static Aggregator fingerprint() {
+            return FINGERPRINT;
+        }
+    }
+
+    /**
+     * public interface Projection
+     * <p>
+     * Maps an item to the number an Aggregator works on (e.g. parses an amount out of its info).
+     */
+    public interface Projection {
+        public long project(int key, String info);
+    }
+
+    /**
+     * A node allocated by a tree (newNode) rather than by the caller, so it may be reused once deleted
+     * (see setNodePool). the class marks it, so nodes need no extra field.
+     */
+    private static final class TreeNode extends AVLNode {
+        private TreeNode(int key, String val) {
+            super(key, val);
+        }
+    }
+
+    /**
+     * A node of a tree with an aggregator, also holding the aggregate of its subtree.
+     * the aggregate is recomputed by the tree's resetNode(), which every rotation, promotion, demotion and join
+     * already calls bottom-up whenever a subtree changes.
+     */
+    private static final class AggregateNode extends AVLNode {
+        private long aggregate;
+
+        private AggregateNode(int key, String val, long aggregate) {
+            super(key, val);
+            this.aggregate = aggregate;
+        }
+    }
+
+    /**
+     * public static class AVLTreeMap
+     * <p>
+     * A NavigableMap adapter over a live AVLTree (no copying), plus int overloads of the
+     * common operations that avoid boxing.
+     * a map may be a view restricted to a key range and/or in descending order - subMap, headMap,
+     * tailMap and descendingMap return such views in O(1), and they read and write through to the
+     * same tree. size() of a view is computed from the subtree sizes in O(logn).
+     * the key -1 is reserved by the tree (it marks virtual nodes) and cannot be stored.
+     * iterators support remove(), other modifications during iteration are not detected.
+     */
+    public static class AVLTreeMap extends AbstractMap<Integer, String> implements NavigableMap<Integer, String> {
+        private final AVLTree tree;
+        // the key range of the view, in ascending order regardless of descending
+        private final boolean fromStart;
+        private final int lo;
+        private final boolean loInclusive;
+        private final boolean toEnd;
+        private final int hi;
+        private final boolean hiInclusive;
+        private final boolean descending;
+
+        public AVLTreeMap() {
+            this(new AVLTree());
+        }
+
+        /**
+         * creates a map backed by tree - changes made through either are visible in both.
+         */
+        public AVLTreeMap(AVLTree tree) {
+            this(tree, true, 0, true, true, 0, true, false);
+        }
+
+        private AVLTreeMap(AVLTree tree, boolean fromStart, int lo, boolean loInclusive,
+                           boolean toEnd, int hi, boolean hiInclusive, boolean descending) {
+            if (!fromStart && !toEnd && lo > hi)
+                throw new IllegalArgumentException("fromKey > toKey");
+            this.tree = tree;
+            this.fromStart = fromStart;
+            this.lo = lo;
+            this.loInclusive = loInclusive;
+            this.toEnd = toEnd;
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+            this.descending = descending;
+        }
+
+        // ---- int overloads ----
+
+        /**
+         * public String get(int k)
+         * <p>
+         * returns the info of the item with key k, or null if there is none in this map.
+         * complexity: O(logn)
+         */
+        public String get(int k) {
+            return inRange(k) ? this.tree.search(k) : null;
+        }
+
+        /**
+         * public boolean containsKey(int k)
+         * <p>
+         * returns true if and only if this map holds an item with key k.
+         * complexity: O(logn)
+         */
+        public boolean containsKey(int k) {
+            return inRange(k) && this.tree.findNode(k) != null;
+        }
+
+        /**
+         * public String put(int k, String i)
+         * <p>
+         * sets the info of key k to i, returns the previous info or null if k was not in the map.
+         * throws IllegalArgumentException if k is outside the range of this view or k == -1.
+         * complexity: O(logn)
+         */
+        public String put(int k, String i) {
+            if (!inRange(k))
+                throw new IllegalArgumentException("key out of range");
+            if (k == -1)
+                throw new IllegalArgumentException("key -1 is reserved");
+            IAVLNode node = this.tree.findNode(k);
+            if (node != null) {
+                String prev = node.getValue();
+                this.tree.replaceValue(node, i);
+                return prev;
+            }
+            this.tree.insert(k, i);
+            return null;
+        }
+
+        /**
+         * public String remove(int k)
+         * <p>
+         * removes the item with key k, returns its info or null if k was not in the map.
+         * complexity: O(logn)
+         */
+        public String remove(int k) {
+            if (!inRange(k))
+                return null;
+            IAVLNode node = this.tree.findNode(k);
+            if (node == null)
+                return null;
+            String prev = node.getValue();
+            this.tree.delete(k);
+            return prev;
+        }
+
+        // ---- Map ----
+
+        @Override
+        public int size() {
+            if (this.fromStart && this.toEnd)
+                return this.tree.size();
+            int below = this.fromStart ? 0 : (this.loInclusive ? this.tree.rank(this.lo) : rankInclusive(this.lo));
+            int upTo = this.toEnd ? this.tree.size() : (this.hiInclusive ? rankInclusive(this.hi) : this.tree.rank(this.hi));
+            return Math.max(0, upTo - below);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return absLowest() == null;
+        }
+
+        @Override
+        public String get(Object key) {
+            return key instanceof Integer ? get(((Integer) key).intValue()) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof Integer && containsKey(((Integer) key).intValue());
+        }
+
+        @Override
+        public String put(Integer key, String value) {
+            return put(key.intValue(), value);
+        }
+
+        @Override
+        public String remove(Object key) {
+            return key instanceof Integer ? remove(((Integer) key).intValue()) : null;
+        }
+
+        @Override
+        public void clear() {
+            if (this.fromStart && this.toEnd) {
+                this.tree.setToEmptyTree();
+            } else {
+                for (IAVLNode node = absLowest(); node != null; node = absLowest()) {
+                    this.tree.delete(node.getKey());
+                }
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<Integer, String>> entrySet() {
+            return new AbstractSet<Map.Entry<Integer, String>>() {
+                @Override
+                public Iterator<Map.Entry<Integer, String>> iterator() {
+                    return new NodeIterator<Map.Entry<Integer, String>>(first(), descending) {
+                        @Override
+                        Map.Entry<Integer, String> element(IAVLNode node) {
+                            return new NodeEntry(tree, node);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return AVLTreeMap.this.size();
+                }
+            };
+        }
+
+        @Override
+        public Set<Integer> keySet() {
+            return navigableKeySet();
+        }
+
+        @Override
+        public Collection<String> values() {
+            return new AbstractCollection<String>() {
+                @Override
+                public Iterator<String> iterator() {
+                    return new NodeIterator<String>(first(), descending) {
+                        @Override
+                        String element(IAVLNode node) {
+                            return node.getValue();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return AVLTreeMap.this.size();
+                }
+            };
+        }
+
+        // ---- SortedMap / NavigableMap ----
+
+        @Override
+        public Comparator<? super Integer> comparator() {
+            return this.descending ? Collections.<Integer>reverseOrder() : null;
+        }
+
+        @Override
+        public Integer firstKey() {
+            return keyOrThrow(first());
+        }
+
+        @Override
+        public Integer lastKey() {
+            return keyOrThrow(last());
+        }
+
+        @Override
+        public Map.Entry<Integer, String> firstEntry() {
+            return snapshot(first());
+        }
+
+        @Override
+        public Map.Entry<Integer, String> lastEntry() {
+            return snapshot(last());
+        }
+
+        @Override
+        public Map.Entry<Integer, String> pollFirstEntry() {
+            return poll(first());
+        }
+
+        @Override
+        public Map.Entry<Integer, String> pollLastEntry() {
+            return poll(last());
+        }
+
+        @Override
+        public Map.Entry<Integer, String> lowerEntry(Integer key) {
+            return snapshot(lower(key));
+        }
+
+        @Override
+        public Integer lowerKey(Integer key) {
+            return keyOrNull(lower(key));
+        }
+
+        @Override
+        public Map.Entry<Integer, String> floorEntry(Integer key) {
+            return snapshot(floor(key));
+        }
+
+        @Override
+        public Integer floorKey(Integer key) {
+            return keyOrNull(floor(key));
+        }
+
+        @Override
+        public Map.Entry<Integer, String> ceilingEntry(Integer key) {
+            return snapshot(ceiling(key));
+        }
+
+        @Override
+        public Integer ceilingKey(Integer key) {
+            return keyOrNull(ceiling(key));
+        }
+
+        @Override
+        public Map.Entry<Integer, String> higherEntry(Integer key) {
+            return snapshot(higher(key));
+        }
+
+        @Override
+        public Integer higherKey(Integer key) {
+            return keyOrNull(higher(key));
+        }
+
+        @Override
+        public NavigableMap<Integer, String> descendingMap() {
+            return new AVLTreeMap(this.tree, this.fromStart, this.lo, this.loInclusive,
+                    this.toEnd, this.hi, this.hiInclusive, !this.descending);
+        }
+
+        @Override
+        public NavigableSet<Integer> navigableKeySet() {
+            return new KeySet(this);
+        }
+
+        @Override
+        public NavigableSet<Integer> descendingKeySet() {
+            return descendingMap().navigableKeySet();
+        }
+
+        @Override
+        public NavigableMap<Integer, String> subMap(Integer fromKey, boolean fromInclusive, Integer toKey, boolean toInclusive) {
+            checkBound(fromKey, fromInclusive);
+            checkBound(toKey, toInclusive);
+            if (this.descending)
+                return view(false, toKey, toInclusive, false, fromKey, fromInclusive);
+            return view(false, fromKey, fromInclusive, false, toKey, toInclusive);
+        }
+
+        @Override
+        public NavigableMap<Integer, String> headMap(Integer toKey, boolean inclusive) {
+            checkBound(toKey, inclusive);
+            if (this.descending)
+                return view(false, toKey, inclusive, this.toEnd, this.hi, this.hiInclusive);
+            return view(this.fromStart, this.lo, this.loInclusive, false, toKey, inclusive);
+        }
+
+        @Override
+        public NavigableMap<Integer, String> tailMap(Integer fromKey, boolean inclusive) {
+            checkBound(fromKey, inclusive);
+            if (this.descending)
+                return view(this.fromStart, this.lo, this.loInclusive, false, fromKey, inclusive);
+            return view(false, fromKey, inclusive, this.toEnd, this.hi, this.hiInclusive);
+        }
+
+        @Override
+        public SortedMap<Integer, String> subMap(Integer fromKey, Integer toKey) {
+            return subMap(fromKey, true, toKey, false);
+        }
+
+        @Override
+        public SortedMap<Integer, String> headMap(Integer toKey) {
+            return headMap(toKey, false);
+        }
+
+        @Override
+        public SortedMap<Integer, String> tailMap(Integer fromKey) {
+            return tailMap(fromKey, true);
+        }
+
+        // ---- navigation in view order ----
+
+        private IAVLNode first() {
+            return this.descending ? absHighest() : absLowest();
+        }
+
+        private IAVLNode last() {
+            return this.descending ? absLowest() : absHighest();
+        }
+
+        private IAVLNode lower(int k) {
+            return this.descending ? absHigher(k) : absLower(k);
+        }
+
+        private IAVLNode floor(int k) {
+            return this.descending ? absCeiling(k) : absFloor(k);
+        }
+
+        private IAVLNode ceiling(int k) {
+            return this.descending ? absFloor(k) : absCeiling(k);
+        }
+
+        private IAVLNode higher(int k) {
+            return this.descending ? absLower(k) : absHigher(k);
+        }
+
+        // ---- navigation in ascending key order, restricted to the range ----
+
+        private IAVLNode absLowest() {
+            IAVLNode node = this.fromStart ? this.tree.min : (this.loInclusive ? ceilingNode(this.lo) : higherNode(this.lo));
+            return node == null || tooHigh(node.getKey()) ? null : node;
+        }
+
+        private IAVLNode absHighest() {
+            IAVLNode node = this.toEnd ? this.tree.max : (this.hiInclusive ? floorNode(this.hi) : lowerNode(this.hi));
+            return node == null || tooLow(node.getKey()) ? null : node;
+        }
+
+        private IAVLNode absCeiling(int k) {
+            if (tooLow(k))
+                return absLowest();
+            IAVLNode node = ceilingNode(k);
+            return node == null || tooHigh(node.getKey()) ? null : node;
+        }
+
+        private IAVLNode absHigher(int k) {
+            if (tooLow(k))
+                return absLowest();
+            IAVLNode node = higherNode(k);
+            return node == null || tooHigh(node.getKey()) ? null : node;
+        }
+
+        private IAVLNode absFloor(int k) {
+            if (tooHigh(k))
+                return absHighest();
+            IAVLNode node = floorNode(k);
+            return node == null || tooLow(node.getKey()) ? null : node;
+        }
+
+        private IAVLNode absLower(int k) {
+            if (tooHigh(k))
+                return absHighest();
+            IAVLNode node = lowerNode(k);
+            return node == null || tooLow(node.getKey()) ? null : node;
+        }
+
+        /**
+         * returns the node with the smallest key >= k (or > k if strict) in the whole tree, or null.
+         * complexity: O(logn)
+         */
+        private IAVLNode ceilingOrHigher(int k, boolean strict) {
+            IAVLNode res = null;
+            IAVLNode curr = this.tree.root;
+            while (curr != null && curr.isRealNode()) {
+                if (curr.getKey() > k || (!strict && curr.getKey() == k)) {
+                    res = curr;
+                    curr = curr.getLeft();
+                } else {
+                    curr = curr.getRight();
+                }
+            }
+            return res;
+        }
+
+        /**
+         * returns the node with the largest key <= k (or < k if strict) in the whole tree, or null.
+         * complexity: O(logn)
+         */
+        private IAVLNode floorOrLower(int k, boolean strict) {
+            IAVLNode res = null;
+            IAVLNode curr = this.tree.root;
+            while (curr != null && curr.isRealNode()) {
+                if (curr.getKey() < k || (!strict && curr.getKey() == k)) {
+                    res = curr;
+                    curr = curr.getRight();
+                } else {
+                    curr = curr.getLeft();
+                }
+            }
+            return res;
+        }
+
+        private IAVLNode ceilingNode(int k) {
+            return ceilingOrHigher(k, false);
+        }
+
+        private IAVLNode higherNode(int k) {
+            return ceilingOrHigher(k, true);
+        }
+
+        private IAVLNode floorNode(int k) {
+            return floorOrLower(k, false);
+        }
+
+        private IAVLNode lowerNode(int k) {
+            return floorOrLower(k, true);
+        }
+
+        // ---- range checks ----
+
+        private boolean tooLow(int k) {
+            return !this.fromStart && (k < this.lo || (k == this.lo && !this.loInclusive));
+        }
+
+        private boolean tooHigh(int k) {
+            return !this.toEnd && (k > this.hi || (k == this.hi && !this.hiInclusive));
+        }
+
+        private boolean inRange(int k) {
+            return !tooLow(k) && !tooHigh(k);
+        }
+
+        /**
+         * a bound of a sub-view must lie in this view's range, or be this view's own exclusive bound.
+         */
+        private void checkBound(int k, boolean inclusive) {
+            boolean inClosedRange = (this.fromStart || k >= this.lo) && (this.toEnd || k <= this.hi);
+            if (inclusive ? !inRange(k) : !inClosedRange)
+                throw new IllegalArgumentException("key out of range");
+        }
+
+        private AVLTreeMap view(boolean fromStart, int lo, boolean loInclusive, boolean toEnd, int hi, boolean hiInclusive) {
+            return new AVLTreeMap(this.tree, fromStart, lo, loInclusive, toEnd, hi, hiInclusive, this.descending);
+        }
+
+        /**
+         * returns the number of keys in the tree that are <= k.
+         * complexity: O(logn)
+         */
+        private int rankInclusive(int k) {
+            return k == Integer.MAX_VALUE ? this.tree.size() : this.tree.rank(k + 1);
+        }
+
+        private Map.Entry<Integer, String> poll(IAVLNode node) {
+            if (node == null)
+                return null;
+            Map.Entry<Integer, String> res = snapshot(node);
+            this.tree.delete(node.getKey());
+            return res;
+        }
+
+        private static Map.Entry<Integer, String> snapshot(IAVLNode node) {
+            return node == null ? null : new AbstractMap.SimpleImmutableEntry<Integer, String>(node.getKey(), node.getValue());
+        }
+
+        private static Integer keyOrNull(IAVLNode node) {
+            return node == null ? null : node.getKey();
+        }
+
+        private static Integer keyOrThrow(IAVLNode node) {
+            if (node == null)
+                throw new NoSuchElementException();
+            return node.getKey();
+        }
+
+        /**
+         * An iterator over the nodes of a map in view order, walking with successor/predecessor.
+         */
+        private abstract class NodeIterator<E> implements Iterator<E> {
+            private IAVLNode next;
+            private IAVLNode lastReturned;
+            private final boolean backwards;
+
+            NodeIterator(IAVLNode first, boolean backwards) {
+                this.next = first;
+                this.backwards = backwards;
+            }
+
+            abstract E element(IAVLNode node);
+
+            @Override
+            public boolean hasNext() {
+                return this.next != null;
+            }
+
+            @Override
+            public E next() {
+                if (this.next == null)
+                    throw new NoSuchElementException();
+                this.lastReturned = this.next;
+                IAVLNode following = this.backwards ? tree.prevNode(this.next) : tree.nextNode(this.next);
+                this.next = following == null || !inRange(following.getKey()) ? null : following;
+                return element(this.lastReturned);
+            }
+
+            @Override
+            public void remove() {
+                if (this.lastReturned == null)
+                    throw new IllegalStateException();
+                // deleting may move the next node object, but never drops it from the tree
+                tree.delete(this.lastReturned.getKey());
+                this.lastReturned = null;
+            }
+        }
+
+        /**
+         * A map entry backed by a tree node, setValue writes through to the tree.
+         */
+        private static final class NodeEntry implements Map.Entry<Integer, String> {
+            private final AVLTree tree;
+            private final IAVLNode node;
+
+            private NodeEntry(AVLTree tree, IAVLNode node) {
+                tree.exposed = true; // the entry holds on to the node
+                this.tree = tree;
+                this.node = node;
+            }
+
+            @Override
+            public Integer getKey() {
+                return this.node.getKey();
+            }
+
+            @Override
+            public String getValue() {
+                return this.node.getValue();
+            }
+
+            @Override
+            public String setValue(String value) {
+                String prev = this.node.getValue();
+                this.tree.replaceValue(this.node, value);
+                return prev;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                return getKey().equals(e.getKey()) && (getValue() == null ? e.getValue() == null : getValue().equals(e.getValue()));
+            }
+
+            @Override
+            public int hashCode() {
+                return getKey().hashCode() ^ (getValue() == null ? 0 : getValue().hashCode());
+            }
+
+            @Override
+            public String toString() {
+                return getKey() + "=" + getValue();
+            }
+        }
+
+        /**
+         * The NavigableSet of keys of a map, delegating everything to the map.
+         */
+        private static final class KeySet extends AbstractSet<Integer> implements NavigableSet<Integer> {
+            private final AVLTreeMap map;
+
+            private KeySet(AVLTreeMap map) {
+                this.map = map;
+            }
+
+            @Override
+            public Iterator<Integer> iterator() {
+                return this.map.new NodeIterator<Integer>(this.map.first(), this.map.descending) {
+                    @Override
+                    Integer element(IAVLNode node) {
+                        return node.getKey();
+                    }
+                };
+            }
+
+            @Override
+            public Iterator<Integer> descendingIterator() {
+                return descendingSet().iterator();
+            }
+
+            @Override
+            public int size() {
+                return this.map.size();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return this.map.isEmpty();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return this.map.containsKey(o);
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                if (!this.map.containsKey(o))
+                    return false;
+                this.map.remove(o);
+                return true;
+            }
+
+            @Override
+            public void clear() {
+                this.map.clear();
+            }
+
+            @Override
+            public Comparator<? super Integer> comparator() {
+                return this.map.comparator();
+            }
+
+            @Override
+            public Integer first() {
+                return this.map.firstKey();
+            }
+
+            @Override
+            public Integer last() {
+                return this.map.lastKey();
+            }
+
+            @Override
+            public Integer lower(Integer e) {
+                return this.map.lowerKey(e);
+            }
+
+            @Override
+            public Integer floor(Integer e) {
+                return this.map.floorKey(e);
+            }
+
+            @Override
+            public Integer ceiling(Integer e) {
+                return this.map.ceilingKey(e);
+            }
+
+            @Override
+            public Integer higher(Integer e) {
+                return this.map.higherKey(e);
+            }
+
+            @Override
+            public Integer pollFirst() {
+                return keyOrNull(this.map.pollFirstEntry());
+            }
+
+            @Override
+            public Integer pollLast() {
+                return keyOrNull(this.map.pollLastEntry());
+            }
+
+            @Override
+            public NavigableSet<Integer> descendingSet() {
+                return this.map.descendingMap().navigableKeySet();
+            }
+
+            @Override
+            public NavigableSet<Integer> subSet(Integer fromElement, boolean fromInclusive, Integer toElement, boolean toInclusive) {
+                return this.map.subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+            }
+
+            @Override
+            public NavigableSet<Integer> headSet(Integer toElement, boolean inclusive) {
+                return this.map.headMap(toElement, inclusive).navigableKeySet();
+            }
+
+            @Override
+            public NavigableSet<Integer> tailSet(Integer fromElement, boolean inclusive) {
+                return this.map.tailMap(fromElement, inclusive).navigableKeySet();
+            }
+
+            @Override
+            public SortedSet<Integer> subSet(Integer fromElement, Integer toElement) {
+                return subSet(fromElement, true, toElement, false);
+            }
+
+            @Override
+            public SortedSet<Integer> headSet(Integer toElement) {
+                return headSet(toElement, false);
+            }
+
+            @Override
+            public SortedSet<Integer> tailSet(Integer fromElement) {
+                return tailSet(fromElement, true);
+            }
+
+            private static Integer keyOrNull(Map.Entry<Integer, String> entry) {
+                return entry == null ? null : entry.getKey();
+            }
+        }
+    }
+
+    /**
+     * public static class OffHeapAVLTree
+     * <p>
+     * An AVL tree whose infos live off-heap: each info is stored once as a length-prefixed UTF-8 record
+     * in direct ByteBuffer chunks, and the tree node keeps only the record's int offset, so no String
+     * (object header and backing array) is pinned on the heap per entry.
+     * reads either decode the info on demand (search) or return a zero-copy view of its bytes (searchBytes).
+     * deleted records are only counted as dead, compact() (also run automatically once most of the
+     * arena is dead) rewrites the live records into fresh chunks and drops the old ones.
+     * keys have the same restriction as in AVLTree (-1 marks virtual nodes).
+     * the arena holds up to about 8 GB of records (see ValueArena).
+     */
+    public static class OffHeapAVLTree {
+        private static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+        private final AVLTree index = new AVLTree();
+        private final int chunkSize;
+        private ValueArena arena;
+
+        public OffHeapAVLTree() {
+            this(DEFAULT_CHUNK_SIZE);
+        }
+
+        /**
+         * @param chunkSize - the size in bytes of each direct buffer the records are packed into
+         */
+        public OffHeapAVLTree(int chunkSize) {
+            if (chunkSize < ValueArena.HEADER_BYTES)
+                throw new IllegalArgumentException("chunk size too small");
+            this.chunkSize = chunkSize;
+            this.arena = new ValueArena(chunkSize);
+        }
+
+        /**
+         * public boolean empty()
+         * <p>
+         * returns true if and only if the tree is empty
+         * complexity: O(1)
+         */
+        public boolean empty() {
+            return this.index.empty();
+        }
+
+        /**
+         * public int size()
+         * <p>
+         * Returns the number of items in the tree.
+         * complexity: O(1)
+         */
+        public int size() {
+            return this.index.size();
+        }
+
+        /**
+         * public int insert(int k, String i)
+         * <p>
+         * inserts an item with key k and info i, copying i into the arena.
+         * returns the same values as AVLTree.insert.
+         * complexity: O(logn + length of i)
+         */
+        public int insert(int k, String i) {
+            ArenaNode node = new ArenaNode(k);
+            int res = this.index.insert(node, k, null);
+            if (res != -1)
+                node.offset = this.arena.append(i);
+            return res;
+        }
+
+        /**
+         * public int delete(int k)
+         * <p>
+         * deletes the item with key k if it is there, marking its record as dead.
+         * returns the same values as AVLTree.delete.
+         * complexity: O(logn), plus an occasional O(n) compaction
+         */
+        public int delete(int k) {
+            IAVLNode node = this.index.searchNode(k);
+            if (node == null)
+                return -1;
+            this.arena.free(((ArenaNode) node).offset);
+            int res = this.index.delete(k);
+            if (this.arena.deadBytes > this.chunkSize && this.arena.deadBytes > this.arena.usedBytes / 2)
+                compact();
+            return res;
+        }
+
+        /**
+         * public String search(int k)
+         * <p>
+         * returns the info of an item with key k, decoded from the arena, if it exists in the tree
+         * otherwise, returns null
+         * complexity: O(logn + length of the info)
+         */
+        public String search(int k) {
+            IAVLNode node = this.index.searchNode(k);
+            return node == null ? null : this.arena.decode(((ArenaNode) node).offset);
+        }
+
+        /**
+         * public ByteBuffer searchBytes(int k)
+         * <p>
+         * returns a read-only view of the UTF-8 bytes of the info of key k, without copying,
+         * or null if k is not in the tree or its info is null.
+         * the view is only valid until the next compaction.
+         * complexity: O(logn)
+         */
+        public ByteBuffer searchBytes(int k) {
+            IAVLNode node = this.index.searchNode(k);
+            return node == null ? null : this.arena.slice(((ArenaNode) node).offset);
+        }
+
+        /**
+         * public int[] keysToArray()
+         * <p>
+         * Returns a sorted array which contains all keys in the tree,
+         * or an empty array if the tree is empty.
+         * complexity: O(n)
+         */
+        public int[] keysToArray() {
+            return this.index.keysToArray();
+        }
+
+        /**
+         * public String[] infoToArray()
+         * <p>
+         * Returns an array which contains all info in the tree, decoded from the arena,
+         * sorted by their respective keys, or an empty array if the tree is empty.
+         * complexity: O(total info length)
+         */
+        public String[] infoToArray() {
+            final String[] arr = new String[this.index.size()];
+            forEachNode(this.index.getRoot(), new NodeVisitor() {
+                private int j = 0;
+
+                public void visit(ArenaNode node) {
+                    arr[j++] = arena.decode(node.offset);
+                }
+            });
+            return arr;
+        }
+
+        /**
+         * public void compact()
+         * <p>
+         * rewrites the live records, in key order, into a fresh arena and releases the old chunks
+         * (their direct memory is freed once the buffers are garbage collected).
+         * invalidates the buffers returned by searchBytes.
+         * complexity: O(total info length)
+         */
+        public void compact() {
+            final ValueArena from = this.arena;
+            final ValueArena to = new ValueArena(this.chunkSize);
+            forEachNode(this.index.getRoot(), new NodeVisitor() {
+                public void visit(ArenaNode node) {
+                    node.offset = to.copy(from, node.offset);
+                }
+            });
+            this.arena = to;
+        }
+
+        /**
+         * public long arenaBytes()
+         * <p>
+         * Returns the number of arena bytes holding records, live or dead.
+         * complexity: O(1)
+         */
+        public long arenaBytes() {
+            return this.arena.usedBytes;
+        }
+
+        /**
+         * public long deadBytes()
+         * <p>
+         * Returns the number of arena bytes held by deleted records, reclaimable by compact().
+         * complexity: O(1)
+         */
+        public long deadBytes() {
+            return this.arena.deadBytes;
+        }
+
+        private static void forEachNode(IAVLNode node, NodeVisitor visitor) {
+            if (node == null || !node.isRealNode())
+                return;
+            forEachNode(node.getLeft(), visitor);
+            visitor.visit((ArenaNode) node);
+            forEachNode(node.getRight(), visitor);
+        }
+
+        private interface NodeVisitor {
+            void visit(ArenaNode node);
+        }
+
+        /**
+         * A tree node holding the arena offset of its info instead of a String.
+         * it implements IAVLNode itself rather than extending AVLNode, so it has no (always null) info
+         * reference, and the int offset takes that slot - the node is as small as an AVLNode (40 bytes).
+         */
+        private static final class ArenaNode implements IAVLNode {
+            private final int key;
+            private IAVLNode left = AVLNode.virNode;
+            private IAVLNode right = AVLNode.virNode;
+            private IAVLNode parent;
+            private int height;
+            private int size = 1;
+            private int offset = ValueArena.NULL_OFFSET;
+
+            private ArenaNode(int key) {
+                this.key = key;
+            }
+
+            public int getKey() {
+                return this.key;
+            }
+
+            public String getValue() {
+                return null; // the info is in the arena
+            }
+
+            public void setLeft(IAVLNode node) {
+                this.left = node;
+            }
+
+            public IAVLNode getLeft() {
+                return this.left;
+            }
+
+            public void setRight(IAVLNode node) {
+                this.right = node;
+            }
+
+            public IAVLNode getRight() {
+                return this.right;
+            }
+
+            public void setParent(IAVLNode node) {
+                this.parent = node;
+            }
+
+            public IAVLNode getParent() {
+                return this.parent;
+            }
+
+            public boolean isRealNode() {
+                return true;
+            }
+
+            public void setHeight(int height) {
+                this.height = height;
+            }
+
+            public int getHeight() {
+                return this.height;
+            }
+
+            public int fixHeight() {
+                int prevHeight = this.height;
+                this.height = Math.max(this.left.getHeight(), this.right.getHeight()) + 1;
+                return Math.abs(this.height - prevHeight);
+            }
+
+            public boolean isLeftChild() {
+                return this.parent != null && this.parent.getLeft() == this;
+            }
+
+            public int getSize() {
+                return this.size;
+            }
+
+            public void setSize(int size) {
+                this.size = size;
+            }
+
+            public void resetSize() {
+                this.size = this.left.getSize() + this.right.getSize() + 1;
+            }
+        }
+
+        /**
+         * Append-only storage of length-prefixed UTF-8 records in direct buffers.
+         * records never span chunks and start at positions that are a multiple of RECORD_ALIGN,
+         * so an offset is (chunk index << chunkBits | position in chunk / RECORD_ALIGN) and fits in an int;
+         * a record larger than a chunk gets a chunk of its own, at position 0. that addresses
+         * 2^31 * RECORD_ALIGN bytes (8 GB) whatever the chunk size.
+         */
+        private static final class ValueArena {
+            private static final int NULL_OFFSET = -1;
+            private static final int HEADER_BYTES = 4;
+            private static final int RECORD_ALIGN = 4;
+
+            private final int chunkSize;
+            private final int chunkBits; // bits of an offset taken by the position in a chunk
+            private final List<ByteBuffer> chunks = new ArrayList<>();
+            private long usedBytes;
+            private long deadBytes;
+
+            private ValueArena(int chunkSize) {
+                this.chunkSize = chunkSize;
+                this.chunkBits = 32 - Integer.numberOfLeadingZeros((chunkSize - 1) / RECORD_ALIGN);
+            }
+
+            /**
+             * appends i as a record and returns its offset (NULL_OFFSET for null).
+             * complexity: O(length of i)
+             */
+            private int append(String i) {
+                if (i == null)
+                    return NULL_OFFSET;
+                return appendRecord(i.getBytes(StandardCharsets.UTF_8));
+            }
+
+            private int appendRecord(byte[] bytes) {
+                int recordSize = HEADER_BYTES + bytes.length;
+                ByteBuffer chunk = this.chunks.isEmpty() ? null : this.chunks.get(this.chunks.size() - 1);
+                if (chunk == null || chunk.remaining() < recordSize) {
+                    if ((long) this.chunks.size() << this.chunkBits > Integer.MAX_VALUE)
+                        throw new IllegalStateException("the value arena is full");
+                    // a record larger than a chunk gets a chunk of its own
+                    chunk = ByteBuffer.allocateDirect(Math.max(this.chunkSize, recordSize));
+                    this.chunks.add(chunk);
+                }
+                int offset = (this.chunks.size() - 1) << this.chunkBits | chunk.position() / RECORD_ALIGN;
+                chunk.putInt(bytes.length);
+                chunk.put(bytes);
+                // padding to the next record position
+                chunk.position(Math.min(chunk.limit(), (chunk.position() + RECORD_ALIGN - 1) & -RECORD_ALIGN));
+                this.usedBytes += recordSize;
+                return offset;
+            }
+
+            /**
+             * counts the record at offset as dead.
+             * complexity: O(1)
+             */
+            private void free(int offset) {
+                if (offset != NULL_OFFSET)
+                    this.deadBytes += HEADER_BYTES + chunkOf(offset).getInt(positionOf(offset));
+            }
+
+            /**
+             * copies the record at offset in from to the end of this arena, returns its new offset.
+             * complexity: O(record length)
+             */
+            private int copy(ValueArena from, int offset) {
+                if (offset == NULL_OFFSET)
+                    return NULL_OFFSET;
+                ByteBuffer bytes = from.slice(offset);
+                byte[] record = new byte[bytes.remaining()];
+                bytes.get(record);
+                return appendRecord(record);
+            }
+
+            private String decode(int offset) {
+                if (offset == NULL_OFFSET)
+                    return null;
+                ByteBuffer bytes = slice(offset);
+                byte[] record = new byte[bytes.remaining()];
+                bytes.get(record);
+                return new String(record, StandardCharsets.UTF_8);
+            }
+
+            /**
+             * returns a read-only view of the record's UTF-8 bytes, or null for NULL_OFFSET.
+             * complexity: O(1)
+             */
+            private ByteBuffer slice(int offset) {
+                if (offset == NULL_OFFSET)
+                    return null;
+                ByteBuffer chunk = chunkOf(offset);
+                int position = positionOf(offset);
+                ByteBuffer view = chunk.duplicate();
+                view.limit(position + HEADER_BYTES + chunk.getInt(position));
+                view.position(position + HEADER_BYTES);
+                return view.slice().asReadOnlyBuffer();
+            }
+
+            private ByteBuffer chunkOf(int offset) {
+                return this.chunks.get(offset >>> this.chunkBits);
+            }
+
+            private int positionOf(int offset) {
+                return (offset & ((1 << this.chunkBits) - 1)) * RECORD_ALIGN;
+            }
+        }
+    }
+
+    /**
+     * public static class TreeServer
+     * <p>
+     * An embedded server exposing a tree to other processes over TCP, with a compact binary protocol
+     * served by a single non-blocking NIO Selector thread. that thread is the only one touching the tree,
+     * so the tree must not be used by the caller while the server runs.
+     * every request and response is a frame: an int body length followed by the body (big-endian).
+     * a request body is an op byte and its arguments, a response body is a status byte and its result,
+     * strings are an int byte count (-1 for null) followed by their UTF-8 bytes:
+     * SEARCH k -> info | INSERT k info -> int | DELETE k -> int | RANK k -> int | SIZE -> int |
+     * SEARCH_ALL n k1..kn -> n infos | RANGE lo hi limit -> count (key info)*count.
+     * requests are pipelined - a client may send many before reading, responses come back in request order.
+     * a run of pipelined SEARCH requests that arrived together is resolved by one searchAll call.
+     * requests are only answered while less than OUT_HIGH_WATER response bytes wait for the client,
+     * the rest stay buffered until it reads. a RANGE response ends early (with fewer items than asked for)
+     * rather than outgrow MAX_FRAME bytes, and a SEARCH_ALL response that would is refused.
+     * see TreeClient for the matching client and TreeLoadGenerator for a loopback benchmark.
+     */
+    public static class TreeServer implements Closeable {
+        private static final byte OP_SEARCH = 1;
+        private static final byte OP_INSERT = 2;
+        private static final byte OP_DELETE = 3;
+        private static final byte OP_RANK = 4;
+        private static final byte OP_SIZE = 5;
+        private static final byte OP_SEARCH_ALL = 6;
+        private static final byte OP_RANGE = 7;
+        private static final byte STATUS_OK = 0;
+        private static final byte STATUS_ERROR = 1;
+        private static final int SEARCH_FRAME = 4 + 1 + 4; // length, op, key
+        private static final int MAX_FRAME = 1 << 24; // larger frames are a protocol error
+        private static final int MAX_RANGE = 1 << 16; // items a single RANGE response may hold
+        private static final int BUFFER_SIZE = 1 << 16;
+        private static final int OUT_HIGH_WATER = 1 << 20; // pending response bytes at which answering and reading pause
+        private static final long ACCEPT_BACKOFF_MILLIS = 100; // accepting pauses this long after a failed accept
+
+        private final AVLTree tree;
+        private final Selector selector;
+        private final ServerSocketChannel server;
+        private final SelectionKey acceptKey;
+        private final Thread loop;
+        private volatile boolean closed;
+        private long acceptResumeAt; // when accepting resumes after a failed accept, 0 while accepting
+
+        /**
+         * binds the server to address (port 0 picks a free port), it starts serving on start().
+         */
+        public TreeServer(AVLTree tree, InetSocketAddress address) throws IOException {
+            this.tree = tree;
+            this.selector = Selector.open();
+            this.server = ServerSocketChannel.open();
+            this.server.bind(address);
+            this.server.configureBlocking(false);
+            this.acceptKey = this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+            this.loop = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve();
+                }
+            }, "avl-tree-server");
+            this.loop.setDaemon(true);
+        }
+
+        /**
+         * public InetSocketAddress getAddress()
+         * <p>
+         * returns the address the server is bound to.
+         */
+        public InetSocketAddress getAddress() throws IOException {
+            return (InetSocketAddress) this.server.getLocalAddress();
+        }
+
+        /**
+         * public void start()
+         * <p>
+         * starts serving on a daemon thread.
+         */
+        public void start() {
+            this.loop.start();
+        }
+
+        /**
+         * public void close()
+         * <p>
+         * stops serving and closes all connections, waiting for the server thread to finish.
+         */
+        @Override
+        public void close() throws IOException {
+            this.closed = true;
+            this.selector.wakeup();
+            // a started loop closes everything itself on its way out, even if it already finished
+            if (this.loop.getState() != Thread.State.NEW) {
+                try {
+                    this.loop.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                closeAll();
+            }
+        }
+
+        private void serve() {
+            try {
+                while (!this.closed) {
+                    awaitReady();
+                    Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key == this.acceptKey) {
+                            accept();
+                            continue;
+                        }
+                        try {
+                            if (key.isValid() && key.isReadable())
+                                read(key);
+                            if (key.isValid() && key.isWritable())
+                                write(key);
+                        } catch (IOException e) {
+                            // a failed or misbehaving connection only loses itself
+                            key.cancel();
+                            closeQuietly(key.channel());
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("tree server failed", e);
+            } finally {
+                closeAll();
+            }
+        }
+
+        /**
+         * waits for ready channels, resuming accepting once a pause after a failed accept is over.
+         */
+        private void awaitReady() throws IOException {
+            if (this.acceptResumeAt == 0) {
+                this.selector.select();
+                return;
+            }
+            long wait = this.acceptResumeAt - System.currentTimeMillis();
+            if (wait > 0)
+                this.selector.select(wait);
+            if (System.currentTimeMillis() >= this.acceptResumeAt) {
+                this.acceptResumeAt = 0;
+                this.acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+            }
+        }
+
+        private void closeAll() {
+            for (SelectionKey key : this.selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            closeQuietly(this.selector);
+        }
+
+        private static void closeQuietly(Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * accepts a pending connection. a failed accept (e.g. out of file descriptors) keeps the listener
+         * open, but pauses accepting for ACCEPT_BACKOFF_MILLIS rather than retrying in a busy loop;
+         * a connection that fails before it is registered is closed.
+         */
+        private void accept() {
+            SocketChannel channel;
+            try {
+                channel = this.server.accept();
+            } catch (IOException e) {
+                this.acceptKey.interestOps(0);
+                this.acceptResumeAt = System.currentTimeMillis() + ACCEPT_BACKOFF_MILLIS;
+                return;
+            }
+            if (channel == null)
+                return;
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.register(this.selector, SelectionKey.OP_READ, new Connection());
+            } catch (IOException e) {
+                closeQuietly(channel);
+            }
+        }
+
+        /**
+         * reads what the channel has, then answers and sends as write does.
+         */
+        private void read(SelectionKey key) throws IOException {
+            Connection conn = (Connection) key.attachment();
+            if (((SocketChannel) key.channel()).read(conn.in) < 0)
+                throw new EOFException();
+            write(key);
+        }
+
+        /**
+         * answers the complete request frames buffered in conn.in while less than OUT_HIGH_WATER response
+         * bytes are pending; the frames left over stay buffered, unparsed, for a later call.
+         * returns true if any frame was answered.
+         */
+        private boolean answerBuffered(Connection conn) throws IOException {
+            conn.in.flip();
+            int start = conn.in.position();
+            int needed = 0;
+            while (conn.out.position() < OUT_HIGH_WATER && conn.in.remaining() >= 4) {
+                int length = conn.in.getInt(conn.in.position());
+                if (length < 1 || length > MAX_FRAME)
+                    throw new IOException("bad frame length " + length);
+                if (conn.in.remaining() < 4 + length) {
+                    needed = 4 + length;
+                    break;
+                }
+                if (conn.in.get(conn.in.position() + 4) == OP_SEARCH && length == SEARCH_FRAME - 4)
+                    answerSearches(conn);
+                else
+                    answer(conn);
+            }
+            boolean answered = conn.in.position() > start;
+            conn.in.compact();
+            if (conn.in.capacity() < needed)
+                conn.in = grow(conn.in, needed);
+            return answered;
+        }
+
+        /**
+         * sends pending responses, answering the buffered requests as the responses drain below
+         * OUT_HIGH_WATER. reading from the channel is paused while too many are pending.
+         */
+        private void write(SelectionKey key) throws IOException {
+            Connection conn = (Connection) key.attachment();
+            do {
+                if (conn.out.position() > 0) {
+                    conn.out.flip();
+                    ((SocketChannel) key.channel()).write(conn.out);
+                    conn.out.compact();
+                }
+            } while (conn.out.position() < OUT_HIGH_WATER && answerBuffered(conn));
+            int ops = conn.out.position() > 0 ? SelectionKey.OP_WRITE : 0;
+            if (conn.out.position() < OUT_HIGH_WATER)
+                ops |= SelectionKey.OP_READ;
+            key.interestOps(ops);
+        }
+
+        /**
+         * answers the run of complete SEARCH frames at the head of conn.in with a single searchAll.
+         * the answers stop (and the frames after stay buffered) once OUT_HIGH_WATER response bytes are pending.
+         * precondition: conn.in starts with a SEARCH frame, less than OUT_HIGH_WATER response bytes are pending
+         */
+        private void answerSearches(Connection conn) {
+            ByteBuffer in = conn.in;
+            int count = 0;
+            for (int pos = in.position(); in.limit() - pos >= SEARCH_FRAME
+                    && in.getInt(pos) == SEARCH_FRAME - 4 && in.get(pos + 4) == OP_SEARCH; pos += SEARCH_FRAME) {
+                count++;
+            }
+            int[] keys = new int[count];
+            for (int j = 0; j < count; j++) {
+                keys[j] = in.getInt(in.position() + j * SEARCH_FRAME + 5);
+            }
+            String[] infos = new String[count];
+            this.tree.searchAll(keys, infos);
+            for (int j = 0; j < count && conn.out.position() < OUT_HIGH_WATER; j++) {
+                byte[] bytes = utf8(infos[j]);
+                int start = beginResponse(conn, STATUS_OK, stringBytes(bytes));
+                putString(conn.out, bytes);
+                endResponse(conn.out, start);
+                in.position(in.position() + SEARCH_FRAME);
+            }
+        }
+
+        /**
+         * answers the single complete request frame at the head of conn.in.
+         */
+        private void answer(Connection conn) throws IOException {
+            ByteBuffer in = conn.in;
+            int limit = in.limit();
+            int end = in.position() + 4 + in.getInt();
+            in.limit(end);
+            byte op = in.get();
+            try {
+                switch (op) {
+                    case OP_SEARCH: {
+                        byte[] info = utf8(this.tree.search(in.getInt()));
+                        int start = beginResponse(conn, STATUS_OK, stringBytes(info));
+                        putString(conn.out, info);
+                        endResponse(conn.out, start);
+                        break;
+                    }
+                    case OP_INSERT: {
+                        int k = in.getInt();
+                        String i = getString(in);
+                        if (k == -1)
+                            throw new IllegalArgumentException("key -1 is reserved");
+                        putInt(conn, this.tree.insert(k, i));
+                        break;
+                    }
+                    case OP_DELETE:
+                        putInt(conn, this.tree.delete(in.getInt()));
+                        break;
+                    case OP_RANK:
+                        putInt(conn, this.tree.rank(in.getInt()));
+                        break;
+                    case OP_SIZE:
+                        putInt(conn, this.tree.size());
+                        break;
+                    case OP_SEARCH_ALL: {
+                        int n = in.getInt();
+                        if (n < 0 || n > in.remaining() / 4)
+                            throw new IllegalArgumentException("bad key count " + n);
+                        int[] keys = new int[n];
+                        for (int j = 0; j < n; j++)
+                            keys[j] = in.getInt();
+                        String[] infos = new String[n];
+                        this.tree.searchAll(keys, infos);
+                        byte[][] bytes = new byte[n][];
+                        long total = 4;
+                        for (int j = 0; j < n; j++) {
+                            bytes[j] = utf8(infos[j]);
+                            total += stringBytes(bytes[j]);
+                        }
+                        if (total > MAX_FRAME - 1)
+                            throw new IllegalArgumentException("response of " + total + " bytes is too large");
+                        int start = beginResponse(conn, STATUS_OK, (int) total);
+                        conn.out.putInt(n);
+                        for (byte[] b : bytes)
+                            putString(conn.out, b);
+                        endResponse(conn.out, start);
+                        break;
+                    }
+                    case OP_RANGE:
+                        answerRange(conn, in.getInt(), in.getInt(), in.getInt());
+                        break;
+                    default:
+                        throw new IOException("unknown op " + op);
+                }
+            } catch (IllegalArgumentException | BufferUnderflowException e) {
+                byte[] message = utf8(e instanceof BufferUnderflowException ? "truncated request" : e.getMessage());
+                int start = beginResponse(conn, STATUS_ERROR, stringBytes(message));
+                putString(conn.out, message);
+                endResponse(conn.out, start);
+            } finally {
+                in.limit(limit);
+                in.position(end);
+            }
+        }
+
+        /**
+         * answers a RANGE request with up to limit items with lo <= key <= hi, walking with
+         * selectNode/nextNode from the first one. the items stop early where the response would
+         * outgrow MAX_FRAME, after at least one item.
+         */
+        private void answerRange(Connection conn, int lo, int hi, int limit) {
+            limit = Math.max(0, Math.min(limit, MAX_RANGE));
+            List<byte[]> bytes = new ArrayList<>();
+            List<IAVLNode> nodes = new ArrayList<>();
+            int total = 4;
+            for (IAVLNode node = this.tree.selectNode(this.tree.rank(lo));
+                 node != null && node.getKey() <= hi && nodes.size() < limit; node = this.tree.nextNode(node)) {
+                byte[] info = utf8(node.getValue());
+                if (total + 4 + stringBytes(info) > MAX_FRAME - 1 && !nodes.isEmpty())
+                    break;
+                total += 4 + stringBytes(info);
+                bytes.add(info);
+                nodes.add(node);
+            }
+            int start = beginResponse(conn, STATUS_OK, total);
+            conn.out.putInt(nodes.size());
+            for (int j = 0; j < nodes.size(); j++) {
+                conn.out.putInt(nodes.get(j).getKey());
+                putString(conn.out, bytes.get(j));
+            }
+            endResponse(conn.out, start);
+        }
+
+        private void putInt(Connection conn, int value) {
+            int start = beginResponse(conn, STATUS_OK, 4);
+            conn.out.putInt(value);
+            endResponse(conn.out, start);
+        }
+
+        /**
+         * makes room for a response with a result of resultBytes bytes, writes its header and status,
+         * and returns the position of the header for endResponse.
+         */
+        private static int beginResponse(Connection conn, byte status, int resultBytes) {
+            if (conn.out.remaining() < 5 + resultBytes)
+                conn.out = grow(conn.out, conn.out.position() + 5 + resultBytes);
+            int start = conn.out.position();
+            conn.out.putInt(0);
+            conn.out.put(status);
+            return start;
+        }
+
+        private static void endResponse(ByteBuffer out, int start) {
+            out.putInt(start, out.position() - start - 4);
+        }
+
+        /**
+         * returns a buffer with room for at least capacity bytes holding the bytes written to buf so far
+         * (buf is in write mode: its position is the number of bytes written).
+         */
+        private static ByteBuffer grow(ByteBuffer buf, int capacity) {
+            ByteBuffer res = ByteBuffer.allocate(Math.max(capacity, 2 * buf.capacity()));
+            buf.flip();
+            res.put(buf);
+            return res;
+        }
+
+        private static byte[] utf8(String s) {
+            return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static int stringBytes(byte[] bytes) {
+            return 4 + (bytes == null ? 0 : bytes.length);
+        }
+
+        private static void putString(ByteBuffer out, byte[] bytes) {
+            if (bytes == null) {
+                out.putInt(-1);
+            } else {
+                out.putInt(bytes.length);
+                out.put(bytes);
+            }
+        }
+
+        private static String getString(ByteBuffer in) {
+            int length = in.getInt();
+            if (length < -1 || length > in.remaining())
+                throw new IllegalArgumentException("bad string length " + length);
+            if (length == -1)
+                return null;
+            String res = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return res;
+        }
+
+        /**
+         * the buffered bytes of a client connection.
+         */
+        private static final class Connection {
+            private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE); // read mode while requests are answered
+            private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE); // write mode, holds unsent responses
+        }
+    }
+
+    /**
+     * public static class TreeClient
+     * <p>
+     * A blocking client for TreeServer. besides one call per request, the array overloads of search and
+     * insert pipeline their requests - up to PIPELINE_WINDOW are sent before their responses are read -
+     * so a batch pays one round trip per window instead of one per item.
+     * a client is not thread-safe, use one per thread.
+     */
+    public static class TreeClient implements Closeable {
+        private static final int PIPELINE_WINDOW = 1024;
+
+        private final SocketChannel channel;
+        private ByteBuffer out = ByteBuffer.allocate(TreeServer.BUFFER_SIZE); // write mode, holds unsent requests
+        private ByteBuffer in = ByteBuffer.allocate(TreeServer.BUFFER_SIZE); // read mode, holds unread responses
+
+        public TreeClient(InetSocketAddress address) throws IOException {
+            this.channel = SocketChannel.open(address);
+            this.channel.socket().setTcpNoDelay(true);
+            this.in.flip();
+        }
+
+        /**
+         * public String search(int k)
+         * <p>
+         * returns the info of the item with key k, or null if there is none.
+         */
+        public String search(int k) throws IOException {
+            sendKey(TreeServer.OP_SEARCH, k);
+            flush();
+            return TreeServer.getString(receive());
+        }
+
+        /**
+         * public String[] search(int[] keys)
+         * <p>
+         * pipelined search: returns the info of the item with each key, or null where there is none.
+         * the server resolves each window of requests with a single searchAll.
+         */
+        public String[] search(int[] keys) throws IOException {
+            String[] res = new String[keys.length];
+            for (int from = 0; from < keys.length; from += PIPELINE_WINDOW) {
+                int to = Math.min(keys.length, from + PIPELINE_WINDOW);
+                for (int j = from; j < to; j++)
+                    sendKey(TreeServer.OP_SEARCH, keys[j]);
+                flush();
+                for (int j = from; j < to; j++)
+                    res[j] = TreeServer.getString(receive());
+            }
+            return res;
+        }
+
+        /**
+         * public String[] searchAll(int[] keys)
+         * <p>
+         * as search(keys), sent as a single SEARCH_ALL request.
+         */
+        public String[] searchAll(int[] keys) throws IOException {
+            ByteBuffer frame = beginRequest(TreeServer.OP_SEARCH_ALL, 4 + 4 * keys.length);
+            frame.putInt(keys.length);
+            for (int k : keys)
+                frame.putInt(k);
+            flush();
+            ByteBuffer response = receive();
+            String[] res = new String[response.getInt()];
+            for (int j = 0; j < res.length; j++)
+                res[j] = TreeServer.getString(response);
+            return res;
+        }
+
+        /**
+         * public int insert(int k, String i)
+         * <p>
+         * inserts an item, returns the same values as AVLTree.insert.
+         */
+        public int insert(int k, String i) throws IOException {
+            sendInsert(k, i);
+            flush();
+            return receive().getInt();
+        }
+
+        /**
+         * public int[] insert(int[] keys, String[] infos)
+         * <p>
+         * pipelined insert of the items (keys[j], infos[j]), returns the result of each insert.
+         */
+        public int[] insert(int[] keys, String[] infos) throws IOException {
+            int[] res = new int[keys.length];
+            for (int from = 0; from < keys.length; from += PIPELINE_WINDOW) {
+                int to = Math.min(keys.length, from + PIPELINE_WINDOW);
+                for (int j = from; j < to; j++)
+                    sendInsert(keys[j], infos[j]);
+                flush();
+                for (int j = from; j < to; j++)
+                    res[j] = receive().getInt();
+            }
+            return res;
+        }
+
+        /**
+         * public int delete(int k)
+         * <p>
+         * deletes the item with key k, returns the same values as AVLTree.delete.
+         */
+        public int delete(int k) throws IOException {
+            sendKey(TreeServer.OP_DELETE, k);
+            flush();
+            return receive().getInt();
+        }
+
+        /**
+         * public int rank(int k)
+         * <p>
+         * returns the number of keys in the tree smaller than k.
+         */
+        public int rank(int k) throws IOException {
+            sendKey(TreeServer.OP_RANK, k);
+            flush();
+            return receive().getInt();
+        }
+
+        /**
+         * public int size()
+         * <p>
+         * returns the number of items in the tree.
+         */
+        public int size() throws IOException {
+            beginRequest(TreeServer.OP_SIZE, 0);
+            flush();
+            return receive().getInt();
+        }
+
+        /**
+         * public int range(int lo, int hi, int limit, int[] keys, String[] infos)
+         * <p>
+         * fills keys and infos with the first (at most limit) items with lo <= key <= hi in key order,
+         * returns how many were filled. the server caps limit at MAX_RANGE, and ends the range early
+     * where the response would outgrow a frame.
+         * precondition: keys.length >= limit and infos.length >= limit
+         */
+        public int range(int lo, int hi, int limit, int[] keys, String[] infos) throws IOException {
+            ByteBuffer frame = beginRequest(TreeServer.OP_RANGE, 12);
+            frame.putInt(lo);
+            frame.putInt(hi);
+            frame.putInt(limit);
+            flush();
+            ByteBuffer response = receive();
+            int count = response.getInt();
+            for (int j = 0; j < count; j++) {
+                keys[j] = response.getInt();
+                infos[j] = TreeServer.getString(response);
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+
+        private void sendKey(byte op, int k) {
+            beginRequest(op, 4).putInt(k);
+        }
+
+        private void sendInsert(int k, String i) {
+            byte[] bytes = TreeServer.utf8(i);
+            ByteBuffer frame = beginRequest(TreeServer.OP_INSERT, 4 + TreeServer.stringBytes(bytes));
+            frame.putInt(k);
+            TreeServer.putString(frame, bytes);
+        }
+
+        /**
+         * makes room for a request with argBytes bytes of arguments, writes its header and op,
+         * and returns the buffer to write the arguments to.
+         */
+        private ByteBuffer beginRequest(byte op, int argBytes) {
+            if (this.out.remaining() < 5 + argBytes)
+                this.out = TreeServer.grow(this.out, this.out.position() + 5 + argBytes);
+            this.out.putInt(1 + argBytes);
+            this.out.put(op);
+            return this.out;
+        }
+
+        private void flush() throws IOException {
+            this.out.flip();
+            while (this.out.hasRemaining())
+                this.channel.write(this.out);
+            this.out.clear();
+        }
+
+        /**
+         * reads the next response, returns its result (positioned after the status byte).
+         * an error response is thrown as an IllegalArgumentException with the server's message.
+         */
+        private ByteBuffer receive() throws IOException {
+            fill(4);
+            int length = this.in.getInt();
+            if (length < 1 || length > TreeServer.MAX_FRAME)
+                throw new IOException("bad frame length " + length);
+            fill(length);
+            ByteBuffer response = this.in.slice();
+            response.limit(length);
+            this.in.position(this.in.position() + length);
+            if (response.get() == TreeServer.STATUS_ERROR)
+                throw new IllegalArgumentException(TreeServer.getString(response));
+            return response;
+        }
+
+        /**
+         * reads from the channel until at least n unread bytes are buffered.
+         */
+        private void fill(int n) throws IOException {
+            if (this.in.remaining() >= n)
+                return;
+            this.in.compact();
+            if (this.in.capacity() < n)
+                this.in = TreeServer.grow(this.in, n);
+            while (this.in.position() < n) {
+                if (this.channel.read(this.in) < 0)
+                    throw new EOFException();
+            }
+            this.in.flip();
+        }
+    }
+
+    /**
+     * public static class TreeLoadGenerator
+     * <p>
+     * A loopback benchmark for TreeServer: builds a tree of random keys, serves it on 127.0.0.1, and runs
+     * client threads issuing pipelined searches (in windows of the given depth) for the given duration,
+     * then prints the throughput. run with: java AVLTree$TreeLoadGenerator [items clients depth seconds]
+     */
+    public static class TreeLoadGenerator {
+        public static void main(String[] args) throws Exception {
+            int items = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+            int clients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+            final int depth = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+            final long seconds = args.length > 3 ? Long.parseLong(args[3]) : 10;
+            final int[] keys = new int[items];
+            String[] infos = new String[items];
+            for (int j = 0; j < items; j++) {
+                keys[j] = 2 * j;
+                infos[j] = "info" + j;
+            }
+            try (TreeServer server = new TreeServer(fromSorted(keys, infos), new InetSocketAddress("127.0.0.1", 0))) {
+                server.start();
+                final InetSocketAddress address = server.getAddress();
+                final long[] done = new long[clients];
+                Thread[] threads = new Thread[clients];
+                for (int c = 0; c < clients; c++) {
+                    final int id = c;
+                    threads[c] = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Random random = new Random(id);
+                            int[] batch = new int[depth];
+                            long deadline = System.nanoTime() + seconds * 1000000000L;
+                            try (TreeClient client = new TreeClient(address)) {
+                                while (System.nanoTime() < deadline) {
+                                    for (int j = 0; j < depth; j++)
+                                        batch[j] = random.nextInt(2 * keys.length); // half of them miss
+                                    client.search(batch);
+                                    done[id] += depth;
+                                }
+                            } catch (IOException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        }
+                    });
+                    threads[c].start();
+                }
+                long total = 0;
+                for (int c = 0; c < clients; c++) {
+                    threads[c].join();
+                    total += done[c];
+                }
+                System.out.println("items=" + items + " clients=" + clients + " depth=" + depth + " searches=" + total
+                        + " ops/sec=" + total / seconds);
+            }
+        }
+    }
+
+    /**
+     * public static class TraceRecorder
+     * <p>
+     * Records the operations called on the trees it is attached to (see setTraceRecorder) into a compact
+     * binary trace, for TraceReplay to run offline. a trace starts with the magic "AVLT" and a version
+     * byte, followed by one record per call: an op byte, the tree's id (varint), and the op's arguments -
+     * INSERT key infoLength+1 (varint, 0 for null) | DELETE key | SEARCH key | SPLIT key lowId highId |
+     * JOIN key otherId | CLEAR | LOAD count key* (the keys of a tree first seen with items in it) |
+     * SPLIT_AT index lowId highId.
+     * infos are not recorded, only their lengths; keys are 4 bytes, so most records take 6 or 7 bytes.
+     * the trees split off a traced tree are traced too. recording is synchronized, so traced trees may be
+     * used from several threads (as each tree's own rules allow).
+     */
+    public static class TraceRecorder implements Closeable {
+        private static final int MAGIC = 0x41564C54; // "AVLT"
+        private static final byte VERSION = 1;
+        private static final byte OP_INSERT = 1;
+        private static final byte OP_DELETE = 2;
+        private static final byte OP_SEARCH = 3;
+        private static final byte OP_SPLIT = 4;
+        private static final byte OP_JOIN = 5;
+        private static final byte OP_CLEAR = 6;
+        private static final byte OP_LOAD = 7;
+        private static final byte OP_SPLIT_AT = 8;
+
+        private final DataOutputStream out;
+        private final Map<AVLTree, Integer> ids = new WeakHashMap<>(); // AVLTree keeps identity equality
+        private int nextId;
+        private long records;
+        private boolean closed;
+
+        /**
+         * records to out, which is buffered by the recorder and closed by close().
+         */
+        public TraceRecorder(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+        }
+
+        public TraceRecorder(String path) throws IOException {
+            this(new FileOutputStream(path));
+        }
+
+        /**
+         * public long records()
+         * <p>
+         * Returns the number of operations recorded so far.
+         */
+        public synchronized long records() {
+            return this.records;
+        }
+
+        /**
+         * public void close()
+         * <p>
+         * flushes and closes the trace. later calls on traced trees are not recorded.
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            this.closed = true;
+            this.out.close();
+            this.ids.clear();
+        }
+
+        private synchronized void insert(AVLTree tree, int k, String i) {
+            if (!begin(OP_INSERT, tree))
+                return;
+            writeInt(k);
+            writeVarint(i == null ? 0 : i.length() + 1);
+        }
+
+        private synchronized void delete(AVLTree tree, int k) {
+            if (!begin(OP_DELETE, tree))
+                return;
+            writeInt(k);
+        }
+
+        private synchronized void search(AVLTree tree, int k) {
+            if (!begin(OP_SEARCH, tree))
+                return;
+            writeInt(k);
+        }
+
+        /**
+         * records a split (OP_SPLIT at key k) or a positional split (OP_SPLIT_AT at index k).
+         */
+        private synchronized void split(AVLTree tree, byte op, int k, AVLTree low, AVLTree high) {
+            if (this.closed)
+                return;
+            // the results are new to the trace, but their items are known from the split - no LOAD
+            int lowId = this.nextId++;
+            int highId = this.nextId++;
+            this.ids.put(low, lowId);
+            this.ids.put(high, highId);
+            if (!begin(op, tree))
+                return;
+            writeInt(k);
+            writeVarint(lowId);
+            writeVarint(highId);
+        }
+
+        private synchronized void join(AVLTree tree, int k, AVLTree other) {
+            if (this.closed)
+                return;
+            int otherId = idOf(other); // loads other first if it is new to the trace
+            if (!begin(OP_JOIN, tree))
+                return;
+            writeInt(k);
+            writeVarint(otherId);
+        }
+
+        private synchronized void clear(AVLTree tree) {
+            begin(OP_CLEAR, tree);
+        }
+
+        /**
+         * returns the tree's id, assigning one on first sight (recording a LOAD of its keys if it has any).
+         */
+        private int idOf(AVLTree tree) {
+            Integer id = this.ids.get(tree);
+            if (id != null || this.closed)
+                return id == null ? -1 : id;
+            this.ids.put(tree, this.nextId);
+            if (!tree.empty()) {
+                int[] keys = tree.keysToArray();
+                begin(OP_LOAD, tree);
+                writeVarint(keys.length);
+                for (int k : keys)
+                    writeInt(k);
+            }
+            return this.nextId++;
+        }
+
+        /**
+         * writes the header of a record, returns false (writing nothing) once the recorder is closed.
+         */
+        private boolean begin(byte op, AVLTree tree) {
+            if (this.closed)
+                return false;
+            int id = idOf(tree);
+            try {
+                this.out.writeByte(op);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            writeVarint(id);
+            this.records++;
+            return true;
+        }
+
+        private void writeInt(int value) {
+            try {
+                this.out.writeInt(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeVarint(int value) {
+            try {
+                while ((value & ~0x7F) != 0) {
+                    this.out.writeByte((value & 0x7F) | 0x80);
+                    value >>>= 7;
+                }
+                this.out.writeByte(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * public static class TraceReplay
+     * <p>
+     * A trace written by TraceRecorder, loaded into memory so it can be replayed deterministically - the
+     * same calls in the same order, with synthetic infos of the recorded lengths - against an AVLTree
+     * (replayTree), a baseline NavigableMap (replayMap, where split copies the two halves and join copies
+     * one map into the other), or a concurrent target from several threads (replayConcurrent).
+     * each replay returns a ReplayReport with throughput, per-op latency percentiles, allocated bytes and,
+     * for AVLTree, the rebalance counts returned by its insert/delete and the costs returned by join.
+     * run with: java AVLTree$TraceReplay trace-file [threads]
+     */
+    public static class TraceReplay {
+        private static final String[] OP_NAMES = {null, "insert", "delete", "search", "split", "join", "clear", "load", "splitAt"};
+        private static final int MAX_CACHED_INFO = 1 << 12; // synthetic infos up to this length are shared
+
+        private final byte[] ops;
+        private final int[] trees;
+        private final int[] keys;
+        private final int[] args; // info length + 1 for INSERT, other id for JOIN, low id for SPLIT(_AT), load index for LOAD
+        private final int[] highIds; // high id for SPLIT(_AT)
+        private final List<int[]> loads;
+        private final String[] infos = new String[MAX_CACHED_INFO];
+
+        private TraceReplay(byte[] ops, int[] trees, int[] keys, int[] args, int[] highIds, List<int[]> loads) {
+            this.ops = ops;
+            this.trees = trees;
+            this.keys = keys;
+            this.args = args;
+            this.highIds = highIds;
+            this.loads = loads;
+        }
+
+        /**
+         * public static TraceReplay load(InputStream in)
+         * <p>
+         * Reads a whole trace from in.
+         * throws IOException if in does not hold a trace of a known version.
+         */
+        public static TraceReplay load(InputStream in) throws IOException {
+            DataInputStream data = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+            if (data.readInt() != TraceRecorder.MAGIC || data.readByte() != TraceRecorder.VERSION)
+                throw new IOException("not a tree trace");
+            int capacity = 1 << 10;
+            byte[] ops = new byte[capacity];
+            int[] trees = new int[capacity], keys = new int[capacity], args = new int[capacity], highIds = new int[capacity];
+            List<int[]> loads = new ArrayList<>();
+            int n = 0;
+            for (int op = data.read(); op != -1; op = data.read()) {
+                if (n == capacity) {
+                    capacity *= 2;
+                    ops = Arrays.copyOf(ops, capacity);
+                    trees = Arrays.copyOf(trees, capacity);
+                    keys = Arrays.copyOf(keys, capacity);
+                    args = Arrays.copyOf(args, capacity);
+                    highIds = Arrays.copyOf(highIds, capacity);
+                }
+                ops[n] = (byte) op;
+                trees[n] = readVarint(data);
+                switch (op) {
+                    case TraceRecorder.OP_INSERT:
+                        keys[n] = data.readInt();
+                        args[n] = readVarint(data);
+                        break;
+                    case TraceRecorder.OP_DELETE:
+                    case TraceRecorder.OP_SEARCH:
+                        keys[n] = data.readInt();
+                        break;
+                    case TraceRecorder.OP_SPLIT:
+                    case TraceRecorder.OP_SPLIT_AT:
+                        keys[n] = data.readInt();
+                        args[n] = readVarint(data);
+                        highIds[n] = readVarint(data);
+                        break;
+                    case TraceRecorder.OP_JOIN:
+                        keys[n] = data.readInt();
+                        args[n] = readVarint(data);
+                        break;
+                    case TraceRecorder.OP_CLEAR:
+                        break;
+                    case TraceRecorder.OP_LOAD: {
+                        int[] loaded = new int[readVarint(data)];
+                        for (int j = 0; j < loaded.length; j++)
+                            loaded[j] = data.readInt();
+                        args[n] = loads.size();
+                        loads.add(loaded);
+                        break;
+                    }
+                    default:
+                        throw new IOException("unknown op " + op + " at record " + n);
+                }
+                n++;
+            }
+            return new TraceReplay(Arrays.copyOf(ops, n), Arrays.copyOf(trees, n), Arrays.copyOf(keys, n),
+                    Arrays.copyOf(args, n), Arrays.copyOf(highIds, n), loads);
+        }
+
+        public static TraceReplay load(String path) throws IOException {
+            try (InputStream in = new FileInputStream(path)) {
+                return load(in);
+            }
+        }
+
+        /**
+         * public int size()
+         * <p>
+         * Returns the number of records in the trace.
+         */
+        public int size() {
+            return this.ops.length;
+        }
+
+        /**
+         * public ReplayReport replayTree(BalancePolicy policy)
+         * <p>
+         * Replays the trace on a single thread against AVLTrees with the given policy.
+         */
+        public ReplayReport replayTree(BalancePolicy policy) {
+            List<AVLTree> trees = new ArrayList<>();
+            ReplayReport report = new ReplayReport("AVLTree/" + policy, 1);
+            long start = System.nanoTime();
+            long allocated = allocatedBytes();
+            for (int j = 0; j < this.ops.length; j++) {
+                byte op = this.ops[j];
+                long t0 = System.nanoTime();
+                long steps = 0;
+                switch (op) {
+                    case TraceRecorder.OP_INSERT:
+                        steps = treeOf(trees, this.trees[j], policy).insert(this.keys[j], infoOf(this.args[j]));
+                        break;
+                    case TraceRecorder.OP_DELETE:
+                        steps = treeOf(trees, this.trees[j], policy).delete(this.keys[j]);
+                        break;
+                    case TraceRecorder.OP_SEARCH:
+                        treeOf(trees, this.trees[j], policy).search(this.keys[j]);
+                        break;
+                    case TraceRecorder.OP_SPLIT:
+                    case TraceRecorder.OP_SPLIT_AT: {
+                        AVLTree tree = treeOf(trees, this.trees[j], policy);
+                        AVLTree[] parts = op == TraceRecorder.OP_SPLIT ? tree.split(this.keys[j]) : tree.splitAt(this.keys[j]);
+                        setTree(trees, this.args[j], parts[0]);
+                        setTree(trees, this.highIds[j], parts[1]);
+                        break;
+                    }
+                    case TraceRecorder.OP_JOIN:
+                        steps = treeOf(trees, this.trees[j], policy).join(new AVLNode(this.keys[j], infoOf(0)),
+                                treeOf(trees, this.args[j], policy));
+                        break;
+                    case TraceRecorder.OP_CLEAR:
+                        treeOf(trees, this.trees[j], policy).setToEmptyTree();
+                        break;
+                    case TraceRecorder.OP_LOAD: {
+                        int[] loaded = this.loads.get(this.args[j]);
+                        setTree(trees, this.trees[j], fromSorted(loaded, infosFor(loaded.length), null, policy));
+                        break;
+                    }
+                }
+                report.record(op, System.nanoTime() - t0, Math.max(0, steps));
+            }
+            report.finish(System.nanoTime() - start, allocatedBytes() - allocated);
+            return report;
+        }
+
+        /**
+         * public ReplayReport replayMap(String name, Supplier<NavigableMap<Integer, String>> factory)
+         * <p>
+         * Replays the trace on a single thread against maps created by factory (e.g. TreeMap::new).
+         */
+        public ReplayReport replayMap(String name, Supplier<NavigableMap<Integer, String>> factory) {
+            List<NavigableMap<Integer, String>> maps = new ArrayList<>();
+            ReplayReport report = new ReplayReport(name, 1);
+            long start = System.nanoTime();
+            long allocated = allocatedBytes();
+            for (int j = 0; j < this.ops.length; j++) {
+                byte op = this.ops[j];
+                long t0 = System.nanoTime();
+                switch (op) {
+                    case TraceRecorder.OP_INSERT:
+                        mapOf(maps, this.trees[j], factory).putIfAbsent(this.keys[j], infoOf(this.args[j]));
+                        break;
+                    case TraceRecorder.OP_DELETE:
+                        mapOf(maps, this.trees[j], factory).remove(this.keys[j]);
+                        break;
+                    case TraceRecorder.OP_SEARCH:
+                        mapOf(maps, this.trees[j], factory).get(this.keys[j]);
+                        break;
+                    case TraceRecorder.OP_SPLIT: {
+                        NavigableMap<Integer, String> map = mapOf(maps, this.trees[j], factory);
+                        NavigableMap<Integer, String> low = factory.get();
+                        NavigableMap<Integer, String> high = factory.get();
+                        low.putAll(map.headMap(this.keys[j], false));
+                        high.putAll(map.tailMap(this.keys[j], false));
+                        setMap(maps, this.args[j], low);
+                        setMap(maps, this.highIds[j], high);
+                        break;
+                    }
+                    case TraceRecorder.OP_SPLIT_AT: {
+                        NavigableMap<Integer, String> low = factory.get();
+                        NavigableMap<Integer, String> high = factory.get();
+                        int position = 0;
+                        for (Map.Entry<Integer, String> entry : mapOf(maps, this.trees[j], factory).entrySet())
+                            (position++ < this.keys[j] ? low : high).put(entry.getKey(), entry.getValue());
+                        setMap(maps, this.args[j], low);
+                        setMap(maps, this.highIds[j], high);
+                        break;
+                    }
+                    case TraceRecorder.OP_JOIN: {
+                        NavigableMap<Integer, String> map = mapOf(maps, this.trees[j], factory);
+                        map.putAll(mapOf(maps, this.args[j], factory));
+                        map.put(this.keys[j], infoOf(0));
+                        break;
+                    }
+                    case TraceRecorder.OP_CLEAR:
+                        mapOf(maps, this.trees[j], factory).clear();
+                        break;
+                    case TraceRecorder.OP_LOAD: {
+                        NavigableMap<Integer, String> map = factory.get();
+                        for (int k : this.loads.get(this.args[j]))
+                            map.put(k, infoOf(0));
+                        setMap(maps, this.trees[j], map);
+                        break;
+                    }
+                }
+                report.record(op, System.nanoTime() - t0, 0);
+            }
+            report.finish(System.nanoTime() - start, allocatedBytes() - allocated);
+            return report;
+        }
+
+        /**
+         * public ReplayReport replayConcurrent(String target, int threads)
+         * <p>
+         * Replays the point operations (INSERT, DELETE, SEARCH) of the first traced tree from the given number of
+         * threads - thread t runs records t, t + threads, ... - against a concurrent target: "sharded"
+         * (ShardedAVLTree), "combining" (FlatCombiningAVLTree), "locked" (an AVLTree behind a lock) or
+         * "skiplist" (ConcurrentSkipListMap). the tree's initial LOAD is applied before timing starts,
+         * SPLIT, SPLIT_AT, JOIN and CLEAR records, and records of other trees, are skipped.
+         */
+        public ReplayReport replayConcurrent(final String target, final int threads) throws InterruptedException {
+            final ConcurrentTarget concurrent = ConcurrentTarget.of(target);
+            if (this.ops.length > 0 && this.ops[0] == TraceRecorder.OP_LOAD && this.trees[0] == 0) {
+                for (int k : this.loads.get(this.args[0]))
+                    concurrent.insert(k, infoOf(0));
+            }
+            final ReplayReport report = new ReplayReport(target, threads);
+            final ReplayReport[] parts = new ReplayReport[threads];
+            final long[] allocated = new long[threads];
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                workers[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        ReplayReport part = new ReplayReport(target, 1);
+                        long before = allocatedBytes();
+                        for (int j = id; j < ops.length; j += threads) {
+                            byte op = ops[j];
+                            if (trees[j] != 0 || op > TraceRecorder.OP_SEARCH)
+                                continue;
+                            long t0 = System.nanoTime();
+                            long steps = 0;
+                            if (op == TraceRecorder.OP_INSERT)
+                                steps = concurrent.insert(keys[j], infoOf(args[j]));
+                            else if (op == TraceRecorder.OP_DELETE)
+                                steps = concurrent.delete(keys[j]);
+                            else
+                                concurrent.search(keys[j]);
+                            part.record(op, System.nanoTime() - t0, Math.max(0, steps));
+                        }
+                        allocated[id] = allocatedBytes() - before;
+                        parts[id] = part;
+                    }
+                });
+            }
+            for (int k = 0; k < MAX_CACHED_INFO; k++)
+                infoOf(k); // filled up front, the workers only read the cache
+            long start = System.nanoTime();
+            for (Thread worker : workers)
+                worker.start();
+            for (Thread worker : workers)
+                worker.join();
+            long elapsed = System.nanoTime() - start;
+            long bytes = 0;
+            for (int t = 0; t < threads; t++) {
+                report.merge(parts[t]);
+                bytes += allocated[t];
+            }
+            report.finish(elapsed, bytes);
+            return report;
+        }
+
+        public static void main(String[] args) throws Exception {
+            if (args.length < 1) {
+                System.err.println("usage: java AVLTree$TraceReplay trace-file [threads]");
+                return;
+            }
+            TraceReplay trace = load(args[0]);
+            System.out.println(trace.size() + " records");
+            System.out.println(trace.replayTree(BalancePolicy.AVL));
+            System.out.println(trace.replayTree(BalancePolicy.WAVL));
+            System.out.println(trace.replayMap("TreeMap", new Supplier<NavigableMap<Integer, String>>() {
+                @Override
+                public NavigableMap<Integer, String> get() {
+                    return new TreeMap<>();
+                }
+            }));
+            int threads = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+            if (threads > 0) {
+                for (String target : new String[]{"locked", "sharded", "combining", "skiplist"})
+                    System.out.println(trace.replayConcurrent(target, threads));
+            }
+        }
+
+        /**
+         * returns the synthetic info for a recorded infoLength + 1 (0 for null), shared up to MAX_CACHED_INFO.
+         */
+        private String infoOf(int lengthPlusOne) {
+            if (lengthPlusOne == 0)
+                return null;
+            int length = lengthPlusOne - 1;
+            if (length >= MAX_CACHED_INFO)
+                return syntheticInfo(length);
+            String res = this.infos[length];
+            if (res == null)
+                this.infos[length] = res = syntheticInfo(length);
+            return res;
+        }
+
+        private static String syntheticInfo(int length) {
+            char[] chars = new char[length];
+            Arrays.fill(chars, 'x');
+            return new String(chars);
+        }
+
+        private String[] infosFor(int n) {
+            String[] res = new String[n];
+            Arrays.fill(res, infoOf(0));
+            return res;
+        }
+
+        private static AVLTree treeOf(List<AVLTree> trees, int id, BalancePolicy policy) {
+            while (trees.size() <= id)
+                trees.add(null);
+            AVLTree res = trees.get(id);
+            if (res == null)
+                trees.set(id, res = new AVLTree(policy));
+            return res;
+        }
+
+        private static void setTree(List<AVLTree> trees, int id, AVLTree tree) {
+            while (trees.size() <= id)
+                trees.add(null);
+            trees.set(id, tree);
+        }
+
+        private static NavigableMap<Integer, String> mapOf(List<NavigableMap<Integer, String>> maps, int id,
+                                                           Supplier<NavigableMap<Integer, String>> factory) {
+            while (maps.size() <= id)
+                maps.add(null);
+            NavigableMap<Integer, String> res = maps.get(id);
+            if (res == null)
+                maps.set(id, res = factory.get());
+            return res;
+        }
+
+        private static void setMap(List<NavigableMap<Integer, String>> maps, int id, NavigableMap<Integer, String> map) {
+            while (maps.size() <= id)
+                maps.add(null);
+            maps.set(id, map);
+        }
+
+        /**
+         * returns the bytes allocated so far by the calling thread, or 0 if the JVM does not tell.
+         */
+        private static long allocatedBytes() {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean)
+                return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+            return 0;
+        }
+
+        private static int readVarint(DataInputStream in) throws IOException {
+            int res = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.readUnsignedByte();
+                res |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return res;
+            }
+        }
+
+        /**
+         * the point operations replayConcurrent runs against a thread-safe target.
+         */
+        private abstract static class ConcurrentTarget {
+            abstract int insert(int k, String i);
+
+            abstract int delete(int k);
+
+            abstract String search(int k);
+
+            static ConcurrentTarget of(String name) {
+                switch (name) {
+                    case "sharded": {
+                        final ShardedAVLTree tree = new ShardedAVLTree();
+                        return new ConcurrentTarget() {
+                            int insert(int k, String i) {
+                                return tree.insert(k, i);
+                            }
+
+                            int delete(int k) {
+                                return tree.delete(k);
+                            }
+
+                            String search(int k) {
+                                return tree.search(k);
+                            }
+                        };
+                    }
+                    case "combining": {
+                        final FlatCombiningAVLTree tree = new FlatCombiningAVLTree();
+                        return new ConcurrentTarget() {
+                            int insert(int k, String i) {
+                                return tree.insert(k, i);
+                            }
+
+                            int delete(int k) {
+                                return tree.delete(k);
+                            }
+
+                            String search(int k) {
+                                return tree.search(k);
+                            }
+                        };
+                    }
+                    case "locked": {
+                        final AVLTree tree = new AVLTree();
+                        return new ConcurrentTarget() {
+                            synchronized int insert(int k, String i) {
+                                return tree.insert(k, i);
+                            }
+
+                            synchronized int delete(int k) {
+                                return tree.delete(k);
+                            }
+
+                            synchronized String search(int k) {
+                                return tree.search(k);
+                            }
+                        };
+                    }
+                    case "skiplist": {
+                        final ConcurrentSkipListMap<Integer, String> map = new ConcurrentSkipListMap<>();
+                        return new ConcurrentTarget() {
+                            int insert(int k, String i) {
+                                return map.putIfAbsent(k, i == null ? "" : i) == null ? 0 : -1; // the map takes no null values
+                            }
+
+                            int delete(int k) {
+                                return map.remove(k) == null ? -1 : 0;
+                            }
+
+                            String search(int k) {
+                                return map.get(k);
+                            }
+                        };
+                    }
+                    default:
+                        throw new IllegalArgumentException("unknown target " + name);
+                }
+            }
+        }
+    }
+
+    /**
+     * public static class ReplayReport
+     * <p>
+     * The results of a TraceReplay run: throughput, per-op latency percentiles (from log-linear histograms,
+     * accurate to 1/16 of the value), bytes allocated by the replaying threads, and the rebalance counts
+     * per op and in total (AVLTree insert/delete results and join costs; 0 for maps).
+     */
+    public static class ReplayReport {
+        private static final int SUB_BUCKETS = 16;
+        private static final int OPS = TraceReplay.OP_NAMES.length;
+
+        private final String target;
+        private final int threads;
+        private final long[][] histograms = new long[OPS][64 * SUB_BUCKETS];
+        private final long[] counts = new long[OPS];
+        private final long[] rebalanceOps = new long[OPS];
+        private long elapsedNanos;
+        private long allocatedBytes;
+
+        private ReplayReport(String target, int threads) {
+            this.target = target;
+            this.threads = threads;
+        }
+
+        public long getOps() {
+            long res = 0;
+            for (long c : this.counts)
+                res += c;
+            return res;
+        }
+
+        public double getOpsPerSecond() {
+            return this.elapsedNanos == 0 ? 0 : getOps() * 1e9 / this.elapsedNanos;
+        }
+
+        public long getAllocatedBytes() {
+            return this.allocatedBytes;
+        }
+
+        public long getRebalanceOps() {
+            long res = 0;
+            for (long r : this.rebalanceOps)
+                res += r;
+            return res;
+        }
+
+        /**
+         * public long getRebalanceOps(String op)
+         * <p>
+         * Returns the rebalance count of the calls of op ("insert", "delete", "join", ...),
+         * 0 for ops that do not rebalance.
+         */
+        public long getRebalanceOps(String op) {
+            return this.rebalanceOps[indexOf(op)];
+        }
+
+        /**
+         * public long percentileNanos(String op, double p)
+         * <p>
+         * Returns the latency in ns that fraction p (0 < p <= 1) of the calls of op ("insert", "search", ...)
+         * did not exceed, or 0 if the trace has none.
+         */
+        public long percentileNanos(String op, double p) {
+            return percentile(indexOf(op), p);
+        }
+
+        private static int indexOf(String op) {
+            int index = Arrays.asList(TraceReplay.OP_NAMES).indexOf(op);
+            if (index < 1)
+                throw new IllegalArgumentException("unknown op " + op);
+            return index;
+        }
+
+        private long percentile(int op, double p) {
+            long rank = (long) Math.ceil(p * this.counts[op]);
+            long seen = 0;
+            long[] histogram = this.histograms[op];
+            for (int b = 0; b < histogram.length; b++) {
+                seen += histogram[b];
+                if (seen >= rank && histogram[b] > 0)
+                    return bucketTop(b);
+            }
+            return 0;
+        }
+
+        private void record(byte op, long nanos, long steps) {
+            this.histograms[op][bucketOf(nanos)]++;
+            this.counts[op]++;
+            this.rebalanceOps[op] += steps;
+        }
+
+        private void merge(ReplayReport other) {
+            for (int op = 0; op < OPS; op++) {
+                this.counts[op] += other.counts[op];
+                this.rebalanceOps[op] += other.rebalanceOps[op];
+                for (int b = 0; b < this.histograms[op].length; b++)
+                    this.histograms[op][b] += other.histograms[op][b];
+            }
+        }
+
+        private void finish(long elapsedNanos, long allocatedBytes) {
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        /**
+         * values below SUB_BUCKETS get a bucket each, larger ones SUB_BUCKETS buckets per power of two.
+         */
+        private static int bucketOf(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) Math.max(0, value);
+            int exponent = 63 - Long.numberOfLeadingZeros(value) - 4; // value >> exponent is in [16, 32)
+            return (exponent + 1) * SUB_BUCKETS + (int) (value >>> exponent) - SUB_BUCKETS;
+        }
+
+        private static long bucketTop(int bucket) {
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+            int exponent = bucket / SUB_BUCKETS - 1;
+            return ((long) (bucket % SUB_BUCKETS + SUB_BUCKETS + 1) << exponent) - 1;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%s x%d: %d ops in %.3fs, %.0f ops/s, %d bytes allocated, %d rebalance ops%n",
+                    this.target, this.threads, getOps(), this.elapsedNanos / 1e9, getOpsPerSecond(),
+                    this.allocatedBytes, getRebalanceOps()));
+            for (int op = 1; op < OPS; op++) {
+                if (this.counts[op] > 0)
+                    sb.append(String.format("  %-6s n=%d p50=%dns p90=%dns p99=%dns p99.9=%dns max=%dns rebalance=%d%n",
+                            TraceReplay.OP_NAMES[op], this.counts[op], percentile(op, 0.5), percentile(op, 0.9),
+                            percentile(op, 0.99), percentile(op, 0.999), percentile(op, 1), this.rebalanceOps[op]));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * public static class CompactAVLTree
+     * <p>
+     * An AVL tree engine whose nodes have no parent pointer (and no virtual sentinel, empty children are
+     * null), so rotations write fewer fields and there are no parent links to keep consistent.
+     * it does not save memory: with compressed oops a node is 40 bytes like an AVLNode, the dropped
+     * reference only turning into alignment padding; it is 8 bytes smaller only with uncompressed oops.
+     * the path up that parent pointers would give is kept in an explicit stack instead: insert and delete
+     * record the root-to-node path on the way down and rebalance bottom-up along it, join keeps the spine
+     * it descends, and split walks the search path back up. cursors hold their own root-to-node stack, so
+     * stepping to the successor or predecessor is amortized O(1).
+     * insert/delete return rebalancing counts as AVLTree does: a height change or single rotation is one
+     * operation, a double rotation two. keys are any int (there is no reserved key).
+     * the tree is not thread-safe, and cursors are invalidated by any change of the tree.
+     */
+    public static class CompactAVLTree {
+        private static final int MAX_HEIGHT = 64; // AVL height of 2^31 nodes is below 1.45 * 31 + 2
+
+        private CompactNode root;
+        private int modCount; // changes since creation, checked by cursors
+        private int steps; // rebalancing operations done by the current operation
+        private final CompactNode[] path = new CompactNode[MAX_HEIGHT]; // root-to-node path of the current operation
+        private final boolean[] wentLeft = new boolean[MAX_HEIGHT]; // wentLeft[d] if path[d + 1] is path[d].left
+        private final CompactNode[] spine = new CompactNode[MAX_HEIGHT]; // the spine descended by join
+
+        public CompactAVLTree() {
+        }
+
+        private CompactAVLTree(CompactNode root) {
+            this.root = root;
+        }
+
+        /**
+         * public static CompactAVLTree fromSorted(int[] keys, String[] infos)
+         * <p>
+         * Returns a balanced tree of the items (keys[j], infos[j]).
+         * precondition: keys is strictly increasing and keys.length == infos.length
+         * (otherwise an IllegalArgumentException is thrown).
+         * complexity: O(n)
+         */
+        public static CompactAVLTree fromSorted(int[] keys, String[] infos) {
+            if (keys.length != infos.length)
+                throw new IllegalArgumentException("keys and infos differ in length");
+            return new CompactAVLTree(build(keys, infos, 0, keys.length));
+        }
+
+        private static CompactNode build(int[] keys, String[] infos, int lo, int hi) {
+            if (lo >= hi)
+                return null;
+            int mid = (lo + hi) >>> 1;
+            if (mid > 0 && keys[mid - 1] >= keys[mid])
+                throw new IllegalArgumentException("keys are not strictly increasing at index " + mid);
+            CompactNode node = new CompactNode(keys[mid], infos[mid]);
+            node.left = build(keys, infos, lo, mid);
+            node.right = build(keys, infos, mid + 1, hi);
+            update(node);
+            return node;
+        }
+
+        /**
+         * public boolean empty()
+         * <p>
+         * returns true if and only if the tree is empty
+         * complexity: O(1)
+         */
+        public boolean empty() {
+            return this.root == null;
+        }
+
+        /**
+         * public int size()
+         * <p>
+         * Returns the number of items in the tree.
+         * complexity: O(1)
+         */
+        public int size() {
+            return sizeOf(this.root);
+        }
+
+        /**
+         * public String search(int k)
+         * <p>
+         * returns the info of an item with key k if it exists in the tree, otherwise null
+         * complexity: O(logn)
+         */
+        public String search(int k) {
+            CompactNode curr = this.root;
+            while (curr != null) {
+                if (k < curr.key)
+                    curr = curr.left;
+                else if (k > curr.key)
+                    curr = curr.right;
+                else
+                    return curr.val;
+            }
+            return null;
+        }
+
+        /**
+         * public int insert(int k, String i)
+         * <p>
+         * inserts an item with key k and info i, rebalancing bottom-up along the recorded path.
+         * returns the number of rebalancing operations, or -1 if an item with key k already exists.
+         * complexity: O(logn)
+         */
+        public int insert(int k, String i) {
+            int depth = 0;
+            CompactNode curr = this.root;
+            while (curr != null) {
+                if (k == curr.key)
+                    return -1;
+                this.path[depth] = curr;
+                this.wentLeft[depth] = k < curr.key;
+                curr = this.wentLeft[depth] ? curr.left : curr.right;
+                depth++;
+            }
+            this.steps = 0;
+            this.root = fixPath(depth, new CompactNode(k, i));
+            this.modCount++;
+            return this.steps;
+        }
+
+        /**
+         * public int delete(int k)
+         * <p>
+         * deletes the item with key k if it is there; a binary node takes its successor's item, and the
+         * successor's node is the one unlinked. rebalances bottom-up along the recorded path.
+         * returns the number of rebalancing operations, or -1 if there is no item with key k.
+         * complexity: O(logn)
+         */
+        public int delete(int k) {
+            int depth = 0;
+            CompactNode curr = this.root;
+            while (curr != null && curr.key != k) {
+                this.path[depth] = curr;
+                this.wentLeft[depth] = k < curr.key;
+                curr = this.wentLeft[depth] ? curr.left : curr.right;
+                depth++;
+            }
+            if (curr == null)
+                return -1;
+            CompactNode replacement;
+            if (curr.left != null && curr.right != null) {
+                // the successor is the leftmost node of the right subtree, it has no left child
+                CompactNode target = curr;
+                this.path[depth] = curr;
+                this.wentLeft[depth] = false;
+                depth++;
+                curr = curr.right;
+                while (curr.left != null) {
+                    this.path[depth] = curr;
+                    this.wentLeft[depth] = true;
+                    depth++;
+                    curr = curr.left;
+                }
+                target.key = curr.key;
+                target.val = curr.val;
+                replacement = curr.right;
+            } else {
+                replacement = curr.left != null ? curr.left : curr.right;
+            }
+            this.steps = 0;
+            this.root = fixPath(depth, replacement);
+            this.modCount++;
+            return this.steps;
+        }
+
+        /**
+         * links child (a subtree root, possibly null) under path[depth - 1] on the recorded side, then walks
+         * the path up, refreshing sizes and heights and rotating where the balance is broken.
+         * returns the new root.
+         * complexity: O(depth)
+         */
+        private CompactNode fixPath(int depth, CompactNode child) {
+            for (int d = depth - 1; d >= 0; d--) {
+                CompactNode parent = this.path[d];
+                this.path[d] = null;
+                if (this.wentLeft[d])
+                    parent.left = child;
+                else
+                    parent.right = child;
+                child = rebalance(parent);
+            }
+            return child;
+        }
+
+        /**
+         * restores the balance of node, whose subtrees are balanced and differ in height by at most 2,
+         * and returns the root of the subtree in its place.
+         * complexity: O(1)
+         */
+        private CompactNode rebalance(CompactNode node) {
+            int balance = heightOf(node.left) - heightOf(node.right);
+            if (balance > 1) {
+                if (heightOf(node.left.left) < heightOf(node.left.right)) {
+                    node.left = rotateLeft(node.left);
+                    this.steps++;
+                }
+                this.steps++;
+                return rotateRight(node);
+            }
+            if (balance < -1) {
+                if (heightOf(node.right.right) < heightOf(node.right.left)) {
+                    node.right = rotateRight(node.right);
+                    this.steps++;
+                }
+                this.steps++;
+                return rotateLeft(node);
+            }
+            int prevHeight = node.height;
+            update(node);
+            if (node.height != prevHeight)
+                this.steps++;
+            return node;
+        }
+
+        private static CompactNode rotateRight(CompactNode node) {
+            CompactNode left = node.left;
+            node.left = left.right;
+            left.right = node;
+            update(node);
+            update(left);
+            return left;
+        }
+
+        private static CompactNode rotateLeft(CompactNode node) {
+            CompactNode right = node.right;
+            node.right = right.left;
+            right.left = node;
+            update(node);
+            update(right);
+            return right;
+        }
+
+        private static void update(CompactNode node) {
+            node.height = Math.max(heightOf(node.left), heightOf(node.right)) + 1;
+            node.size = sizeOf(node.left) + sizeOf(node.right) + 1;
+        }
+
+        private static int heightOf(CompactNode node) {
+            return node == null ? -1 : node.height;
+        }
+
+        private static int sizeOf(CompactNode node) {
+            return node == null ? 0 : node.size;
+        }
+
+        /**
+         * public int rank(int k)
+         * <p>
+         * Returns the number of keys in the tree that are smaller than k.
+         * complexity: O(logn)
+         */
+        public int rank(int k) {
+            int res = 0;
+            CompactNode curr = this.root;
+            while (curr != null) {
+                if (curr.key < k) {
+                    res += sizeOf(curr.left) + 1;
+                    curr = curr.right;
+                } else {
+                    curr = curr.left;
+                }
+            }
+            return res;
+        }
+
+        /**
+         * public String min()
+         * <p>
+         * Returns the info of the item with the smallest key, or null if the tree is empty.
+         * complexity: O(logn)
+         */
+        public String min() {
+            Cursor cursor = first();
+            return cursor.valid() ? cursor.info() : null;
+        }
+
+        /**
+         * public String max()
+         * <p>
+         * Returns the info of the item with the largest key, or null if the tree is empty.
+         * complexity: O(logn)
+         */
+        public String max() {
+            Cursor cursor = last();
+            return cursor.valid() ? cursor.info() : null;
+        }
+
+        /**
+         * public int[] keysToArray()
+         * <p>
+         * Returns a sorted array which contains all keys in the tree.
+         * complexity: O(n)
+         */
+        public int[] keysToArray() {
+            int[] res = new int[size()];
+            int j = 0;
+            for (Cursor cursor = first(); cursor.valid(); cursor.next())
+                res[j++] = cursor.key();
+            return res;
+        }
+
+        /**
+         * public String[] infoToArray()
+         * <p>
+         * Returns an array which contains all info in the tree, sorted by their respective keys.
+         * complexity: O(n)
+         */
+        public String[] infoToArray() {
+            String[] res = new String[size()];
+            int j = 0;
+            for (Cursor cursor = first(); cursor.valid(); cursor.next())
+                res[j++] = cursor.info();
+            return res;
+        }
+
+        /**
+         * public Cursor first()
+         * <p>
+         * Returns a cursor at the smallest key (not valid if the tree is empty).
+         * complexity: O(logn)
+         */
+        public Cursor first() {
+            Cursor cursor = new Cursor(this);
+            for (CompactNode curr = this.root; curr != null; curr = curr.left)
+                cursor.push(curr);
+            return cursor;
+        }
+
+        /**
+         * public Cursor last()
+         * <p>
+         * Returns a cursor at the largest key (not valid if the tree is empty).
+         * complexity: O(logn)
+         */
+        public Cursor last() {
+            Cursor cursor = new Cursor(this);
+            for (CompactNode curr = this.root; curr != null; curr = curr.right)
+                cursor.push(curr);
+            return cursor;
+        }
+
+        /**
+         * public Cursor ceiling(int k)
+         * <p>
+         * Returns a cursor at the smallest key >= k (not valid if there is none).
+         * complexity: O(logn)
+         */
+        public Cursor ceiling(int k) {
+            return seek(k, true, true);
+        }
+
+        /**
+         * public Cursor successor(int k)
+         * <p>
+         * Returns a cursor at the smallest key > k (not valid if there is none); k need not be in the tree.
+         * complexity: O(logn)
+         */
+        public Cursor successor(int k) {
+            return seek(k, false, true);
+        }
+
+        /**
+         * public Cursor predecessor(int k)
+         * <p>
+         * Returns a cursor at the largest key < k (not valid if there is none); k need not be in the tree.
+         * complexity: O(logn)
+         */
+        public Cursor predecessor(int k) {
+            return seek(k, false, false);
+        }
+
+        /**
+         * descends towards k keeping the path, then cuts the path back to the last node that qualifies
+         * (>= k or > k when up, < k when down) - the nodes above it on the path are its ancestors.
+         * complexity: O(logn)
+         */
+        private Cursor seek(int k, boolean inclusive, boolean up) {
+            Cursor cursor = new Cursor(this);
+            int found = 0;
+            CompactNode curr = this.root;
+            while (curr != null) {
+                cursor.push(curr);
+                boolean qualifies = up ? (curr.key > k || (inclusive && curr.key == k)) : curr.key < k;
+                if (qualifies)
+                    found = cursor.depth;
+                if (up)
+                    curr = qualifies ? curr.left : curr.right;
+                else
+                    curr = qualifies ? curr.right : curr.left;
+            }
+            cursor.truncate(found);
+            return cursor;
+        }
+
+        /**
+         * public CompactAVLTree[] split(int x)
+         * <p>
+         * splits the tree into [t1, t2] with keys(t1) < x < keys(t2), dropping x if it is in the tree.
+         * the search path to x is walked back up, joining each ancestor and its other subtree onto the side
+         * it belongs to. this tree is left empty.
+         * complexity: O(logn)
+         */
+        public CompactAVLTree[] split(int x) {
+            int depth = 0;
+            CompactNode curr = this.root;
+            while (curr != null && curr.key != x) {
+                this.path[depth] = curr;
+                this.wentLeft[depth] = x < curr.key;
+                curr = this.wentLeft[depth] ? curr.left : curr.right;
+                depth++;
+            }
+            CompactNode lower = curr == null ? null : curr.left;
+            CompactNode higher = curr == null ? null : curr.right;
+            for (int d = depth - 1; d >= 0; d--) {
+                CompactNode ancestor = this.path[d];
+                this.path[d] = null;
+                if (this.wentLeft[d])
+                    higher = joinNodes(higher, ancestor, ancestor.right);
+                else
+                    lower = joinNodes(ancestor.left, ancestor, lower);
+            }
+            this.root = null;
+            this.modCount++;
+            return new CompactAVLTree[]{new CompactAVLTree(lower), new CompactAVLTree(higher)};
+        }
+
+        /**
+         * public int join(int k, String i, CompactAVLTree t)
+         * <p>
+         * joins t and the item (k, i) into this tree, leaving t empty.
+         * Returns the complexity of the operation (|tree.rank - t.rank| + 1).
+         * precondition: keys(t) < k < keys() or keys(t) > k > keys()
+         * complexity: O(|tree.rank - t.rank| + 1)
+         */
+        public int join(int k, String i, CompactAVLTree t) {
+            int complexity = Math.abs(heightOf(this.root) - heightOf(t.root)) + 1;
+            CompactNode mid = new CompactNode(k, i);
+            boolean thisLower = this.root != null ? this.root.key < k : t.root != null && t.root.key > k;
+            this.root = thisLower ? joinNodes(this.root, mid, t.root) : joinNodes(t.root, mid, this.root);
+            t.root = null;
+            this.modCount++;
+            t.modCount++;
+            return complexity;
+        }
+
+        /**
+         * joins the subtrees lower and higher with mid between them and returns the root. the taller
+         * subtree's spine is descended (kept in the spine stack) to a node of about the other's height,
+         * mid takes its place, and the spine is rebalanced bottom-up.
+         * precondition: keys(lower) < mid.key < keys(higher)
+         * complexity: O(|height(lower) - height(higher)| + 1)
+         */
+        private CompactNode joinNodes(CompactNode lower, CompactNode mid, CompactNode higher) {
+            int lowerHeight = heightOf(lower);
+            int higherHeight = heightOf(higher);
+            if (lowerHeight > higherHeight + 1) {
+                int depth = 0;
+                CompactNode curr = lower;
+                while (heightOf(curr) > higherHeight + 1) {
+                    this.spine[depth++] = curr;
+                    curr = curr.right;
+                }
+                mid.left = curr;
+                mid.right = higher;
+                update(mid);
+                CompactNode child = mid;
+                while (depth > 0) {
+                    CompactNode parent = this.spine[--depth];
+                    this.spine[depth] = null;
+                    parent.right = child;
+                    child = rebalance(parent);
+                }
+                return child;
+            }
+            if (higherHeight > lowerHeight + 1) {
+                int depth = 0;
+                CompactNode curr = higher;
+                while (heightOf(curr) > lowerHeight + 1) {
+                    this.spine[depth++] = curr;
+                    curr = curr.left;
+                }
+                mid.left = lower;
+                mid.right = curr;
+                update(mid);
+                CompactNode child = mid;
+                while (depth > 0) {
+                    CompactNode parent = this.spine[--depth];
+                    this.spine[depth] = null;
+                    parent.left = child;
+                    child = rebalance(parent);
+                }
+                return child;
+            }
+            mid.left = lower;
+            mid.right = higher;
+            update(mid);
+            return mid;
+        }
+
+        /**
+         * public static class Cursor
+         * <p>
+         * A position in a CompactAVLTree, holding the path from the root to its node, so next() and prev()
+         * walk to the successor / predecessor without parent pointers (amortized O(1), O(logn) worst case).
+         * throws ConcurrentModificationException if the tree changed since the cursor was created.
+         */
+        public static class Cursor {
+            private final CompactAVLTree tree;
+            private final int expectedModCount;
+            private final CompactNode[] stack = new CompactNode[MAX_HEIGHT];
+            private int depth; // nodes on the stack, the cursor is at stack[depth - 1]
+
+            private Cursor(CompactAVLTree tree) {
+                this.tree = tree;
+                this.expectedModCount = tree.modCount;
+            }
+
+            /**
+             * public boolean valid()
+             * <p>
+             * returns true if the cursor is at an item (false once it moved past either end).
+             */
+            public boolean valid() {
+                return this.depth > 0;
+            }
+
+            public int key() {
+                return current().key;
+            }
+
+            public String info() {
+                return current().val;
+            }
+
+            /**
+             * public void next()
+             * <p>
+             * moves to the next larger key.
+             */
+            public void next() {
+                CompactNode node = current();
+                if (node.right != null) {
+                    for (CompactNode curr = node.right; curr != null; curr = curr.left)
+                        push(curr);
+                } else {
+                    CompactNode child;
+                    do {
+                        child = this.stack[--this.depth];
+                    } while (this.depth > 0 && this.stack[this.depth - 1].right == child);
+                }
+            }
+
+            /**
+             * public void prev()
+             * <p>
+             * moves to the next smaller key.
+             */
+            public void prev() {
+                CompactNode node = current();
+                if (node.left != null) {
+                    for (CompactNode curr = node.left; curr != null; curr = curr.right)
+                        push(curr);
+                } else {
+                    CompactNode child;
+                    do {
+                        child = this.stack[--this.depth];
+                    } while (this.depth > 0 && this.stack[this.depth - 1].left == child);
+                }
+            }
+
+            private CompactNode current() {
+                if (this.tree.modCount != this.expectedModCount)
+                    throw new ConcurrentModificationException();
+                if (this.depth == 0)
+                    throw new NoSuchElementException();
+                return this.stack[this.depth - 1];
+            }
+
+            private void push(CompactNode node) {
+                this.stack[this.depth++] = node;
+            }
+
+            private void truncate(int depth) {
+                this.depth = depth;
+            }
+        }
+
+        /**
+         * A node of a CompactAVLTree: no parent pointer, null for empty children.
+         */
+        private static final class CompactNode {
+            private int key;
+            private String val;
+            private CompactNode left;
+            private CompactNode right;
+            private int height;
+            private int size;
+
+            private CompactNode(int key, String val) {
+                this.key = key;
+                this.val = val;
+                this.size = 1;
+            }
+        }
+    }
+
 }
   
 